@@ -0,0 +1,97 @@
+/*
+	File: HandlerDispatchBenchmark.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import peerbase.socket.SocketInterface;
+
+/**
+ * Measures the dispatch of a received message to its handler by the
+ * node (Node.handleMessage, as called for every incoming connection or
+ * multiplexed request): the lookup of the handler by message type, the
+ * metrics kept around it, and the call itself, with many or few handlers
+ * registered. It lives in the peerbase package because handleMessage is
+ * package-private.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerDispatchBenchmark {
+	
+	@Param({ "8", "256" })
+	public int handlers;
+	
+	private Node node;
+	private PeerConnection peerconn;
+	private PeerMessage[] msgs;
+	private PeerMessage unhandled;
+	private int next;
+	
+	
+	@Setup
+	public void setup(final Blackhole bh) {
+		node = new Node(0, new PeerInfo("localhost", 0));
+		HandlerInterface handler = new HandlerInterface() {
+			public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
+				bh.consume(msg);
+			}
+		};
+		msgs = new PeerMessage[handlers];
+		for (int i = 0; i < handlers; i++) {
+			String type = String.format("T%03d", i);
+			node.addHandler(type, handler);
+			msgs[i] = new PeerMessage(type, "data");
+		}
+		unhandled = new PeerMessage("NONE", "data");
+		peerconn = new PeerConnection(null, (SocketInterface)null);
+		next = 0;
+	}
+	
+	
+	@Benchmark
+	public void dispatch() {
+		node.handleMessage(peerconn, msgs[next]);
+		if (++next == msgs.length)
+			next = 0;
+	}
+	
+	
+	@Benchmark
+	public void dispatchUnhandled() {
+		node.handleMessage(peerconn, unhandled);
+	}
+}
@@ -0,0 +1,65 @@
+/*
+	File: IntCodecBenchmark.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import peerbase.PeerMessage;
+
+/**
+ * Measures the conversions between ints and the 4-byte big-endian 
+ * arrays of the message header, PeerMessage.intToByteArray and
+ * byteArrayToInt.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntCodecBenchmark {
+	
+	private int value = 0x12345678;
+	private byte[] bytes = PeerMessage.intToByteArray(0x12345678);
+	
+	
+	@Benchmark
+	public byte[] intToByteArray() {
+		return PeerMessage.intToByteArray(value);
+	}
+	
+	
+	@Benchmark
+	public int byteArrayToInt() {
+		return PeerMessage.byteArrayToInt(bytes);
+	}
+}
@@ -0,0 +1,135 @@
+/*
+	File: LoopbackBenchmark.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.bench;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import peerbase.*;
+
+/**
+ * Measures a complete request and reply between two nodes over the
+ * loopback interface: connecting, sending the request, dispatching it
+ * to a handler that echoes it back, and receiving the reply. The server
+ * node runs in either server mode, and the client either opens a new
+ * connection per request or uses a connection pool.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+	
+	public static final String ECHO = "ECHO";
+	
+	@Param({ "blocking", "nio" })
+	public String server;
+	
+	@Param({ "false", "true" })
+	public boolean pooled;
+	
+	@Param({ "16", "16384" })
+	public int size;
+	
+	private Node serverNode;
+	private Node client;
+	private PeerInfo pd;
+	private PeerMessage msg;
+	
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		int port = freePort();
+		int mode = server.equals("nio") ? Node.NIO_SERVER : Node.BLOCKING_SERVER;
+		serverNode = new Node(0, new PeerInfo("localhost", port), mode);
+		serverNode.addHandler(ECHO, new HandlerInterface() {
+			public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
+				peerconn.sendData(msg);
+			}
+		});
+		Thread t = new Thread(new Runnable() {
+			public void run() { serverNode.mainLoop(); }
+		}, "LoopbackBenchmark-server");
+		t.setDaemon(true);
+		t.start();
+		awaitListening(port);
+		
+		client = new Node(0, new PeerInfo("localhost", 0));
+		if (pooled)
+			client.setConnectionPool(new ConnectionPool(4, 60000));
+		pd = new PeerInfo("localhost", port);
+		msg = new PeerMessage(ECHO, new byte[size]);
+	}
+	
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		serverNode.shutdown();
+		client.shutdown();
+	}
+	
+	
+	@Benchmark
+	public List<PeerMessage> roundTrip() {
+		List<PeerMessage> replies = client.connectAndSend(pd, msg, true);
+		if (replies.size() != 1)
+			throw new IllegalStateException("Expected one reply: " + replies);
+		return replies;
+	}
+	
+	
+	private static int freePort() throws IOException {
+		ServerSocket s = new ServerSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+		return port;
+	}
+	
+	
+	private static void awaitListening(int port) throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket("localhost", port).close();
+				return;
+			}
+			catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+		throw new IllegalStateException("Server did not start on port " + port);
+	}
+}
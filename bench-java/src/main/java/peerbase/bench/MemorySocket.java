@@ -0,0 +1,97 @@
+/*
+	File: MemorySocket.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.bench;
+
+import java.io.IOException;
+
+import peerbase.socket.SocketInterface;
+
+/**
+ * A socket that reads from a fixed array of bytes and discards what is
+ * written to it, for measuring message decoding without the network.
+ * The input can be replayed with reset().
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class MemorySocket implements SocketInterface {
+	
+	private byte[] input;
+	private int pos;
+	
+	
+	public MemorySocket(byte[] input) {
+		this.input = input;
+		this.pos = 0;
+	}
+	
+	
+	public void reset() {
+		pos = 0;
+	}
+	
+	
+	public void write(byte[] b) {
+	}
+	
+	
+	public void write(byte[] b, int off, int len) {
+	}
+	
+	
+	public void flush() {
+	}
+	
+	
+	public int read() {
+		return pos < input.length ? input[pos++] & 0xff : -1;
+	}
+	
+	
+	public int read(byte[] b) {
+		if (pos >= input.length)
+			return -1;
+		int n = Math.min(b.length, input.length - pos);
+		System.arraycopy(input, pos, b, 0, n);
+		pos += n;
+		return n;
+	}
+	
+	
+	public int readFully(byte[] b, int off, int len) {
+		if (pos >= input.length)
+			return -1;
+		int n = Math.min(len, input.length - pos);
+		System.arraycopy(input, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+	
+	
+	public void close() throws IOException {
+	}
+}
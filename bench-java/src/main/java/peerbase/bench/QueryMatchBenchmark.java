@@ -0,0 +1,105 @@
+/*
+	File: QueryMatchBenchmark.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import peerbase.util.TrigramIndex;
+
+/**
+ * Measures the matching of a query key against a catalog of file names,
+ * as done by FileShareNode for every QUER message it receives: with the
+ * TrigramIndex the node keeps of its file names, and, for comparison,
+ * with a scan of all the names. Keys are either common (matching many
+ * names) or rare (matching few).
+ * 
+ * @author PeerBase contributors
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryMatchBenchmark {
+	
+	private static final int MAXRESULTS = 64;   // as in FileShareNode
+	private static final String[] WORDS = { "alpha", "beta", "gamma", "delta",
+		"song", "live", "remix", "demo", "track", "album", "intro", "final",
+		"mix", "edit", "cover", "tape", "night", "day", "blue", "red" };
+	
+	@Param({ "1000", "100000" })
+	public int catalog;
+	
+	@Param({ "song", "zq42" })
+	public String key;
+	
+	private TrigramIndex index;
+	private List<String> names;
+	
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(42);
+		index = new TrigramIndex();
+		names = new ArrayList<String>();
+		for (int i = 0; i < catalog; i++) {
+			String name = String.format("%s_%s_%s_%d.mp3", 
+					WORDS[random.nextInt(WORDS.length)], 
+					WORDS[random.nextInt(WORDS.length)],
+					Integer.toString(random.nextInt(1 << 20), 36), i);
+			index.add(name);
+			names.add(name);
+		}
+	}
+	
+	
+	@Benchmark
+	public List<String> indexSearch() {
+		return index.search(key, MAXRESULTS);
+	}
+	
+	
+	@Benchmark
+	public List<String> linearScan() {
+		List<String> matches = new ArrayList<String>();
+		for (String name : names) {
+			if (name.contains(key)) {
+				matches.add(name);
+				if (matches.size() == MAXRESULTS)
+					break;
+			}
+		}
+		return matches;
+	}
+}
@@ -0,0 +1,561 @@
+/*
+	File: ConnectionPool.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import peerbase.socket.SocketFactory;
+import peerbase.socket.SocketInterface;
+
+/**
+ * Keeps persistent connections to peers open and reuses them for
+ * successive messages, instead of opening a new socket for every
+ * message as Node.connectAndSend does by default. Connections are
+ * keyed by the host and port of the PeerInfo they lead to.
+ * <p>
+ * Each pooled connection is multiplexed: any number of requests may
+ * be outstanding on it at once, and replies are matched to requests by
+ * the request id carried in the MuxSession envelopes, rather than by the
+ * remote side closing the connection. A new connection to a peer is only
+ * opened when all existing ones are busy and the per-peer limit has not
+ * been reached. Connections that have been idle for longer than the idle
+ * timeout are closed.
+ * <p>
+ * Peers that do not understand the multiplexed protocol (they close the
+ * connection without replying) are remembered for LEGACYRETRY 
+ * milliseconds, during which messages to them are sent over a fresh
+ * connection each time, as before. After that a pooled connection is
+ * tried again, so that a peer that was merely restarting or overloaded
+ * is not left out of the pool for good.
+ * <p>
+ * Request timeouts and idle eviction are scheduled on the timer of the
+ * node the pool is given to (see Node.setConnectionPool), and idle time
+ * is measured by the node's clock, so a pool must be set on a node 
+ * before it is used.
+ *
+ * @author PeerBase contributors
+ */
+public class ConnectionPool {
+
+	public static final long LEGACYRETRY = 600000;  // milliseconds
+
+	private int maxPerPeer;
+	private long idleTimeout;   // milliseconds
+	private Hashtable<String,List<PooledConnection>> pool;
+	private Hashtable<String,Integer> opening;  // connects in progress
+	private Map<String,ScheduledFuture<?>> legacyPeers;  // until expiry
+	private AtomicInteger nextReqId;
+	private volatile ScheduledExecutorService timer;
+	private ScheduledFuture<?> eviction;
+	private volatile LongSupplier clock;   // nanoseconds
+	private volatile Metrics metrics;
+
+
+	/**
+	 * Creates a pool with the given limits.
+	 *
+	 * @param maxPerPeer the maximum number of connections kept open to
+	 * any one peer
+	 * @param idleTimeout the time (in milliseconds) after which an unused
+	 * connection is closed
+	 */
+	public ConnectionPool(int maxPerPeer, long idleTimeout) {
+		this.maxPerPeer = maxPerPeer;
+		this.idleTimeout = idleTimeout;
+		this.pool = new Hashtable<String,List<PooledConnection>>();
+		this.opening = new Hashtable<String,Integer>();
+		this.legacyPeers = new ConcurrentHashMap<String,ScheduledFuture<?>>();
+		this.nextReqId = new AtomicInteger(0);
+		this.metrics = Metrics.getRegistry();
+		this.timer = null;
+		this.eviction = null;
+		this.clock = new LongSupplier() {
+			public long getAsLong() { return System.nanoTime(); }
+		};
+	}
+
+
+	/**
+	 * Sends a message to the given peer over a pooled connection,
+	 * optionally waiting for and returning the replies.
+	 *
+	 * @param pd the peer to send to
+	 * @param msg the message
+	 * @param waitreply whether to wait for reply(ies)
+	 * @return list of replies (empty if not waiting for replies)
+	 * @throws IOException if the message could not be delivered or the
+	 * connection failed before all replies were received
+	 */
+	public List<PeerMessage> send(PeerInfo pd, PeerMessage msg, boolean waitreply)
+	throws IOException {
+		ReplyCollector rc = new ReplyCollector();
+		send(pd, msg, rc, 0);
+		if (!waitreply)
+			return new ArrayList<PeerMessage>();
+		try {
+			return rc.getFuture().get();
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted waiting for reply: " + e);
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Connection failed: " + e.getCause());
+		}
+	}
+
+
+	/**
+	 * Sends a message to the given peer over a pooled connection. The
+	 * replies are passed to the listener by the connection's reader
+	 * thread as they arrive. This method returns as soon as the message
+	 * has been written, except for peers that do not support pooled 
+	 * connections, for which it returns after all replies have been 
+	 * delivered.
+	 *
+	 * @param pd the peer to send to
+	 * @param msg the message
+	 * @param listener the listener receiving the replies
+	 * @param timeout the time (in milliseconds) to wait for all replies
+	 * before failing the request, or 0 to wait indefinitely
+	 * @throws IOException if the message could not be delivered
+	 */
+	public void send(PeerInfo pd, PeerMessage msg, ReplyListener listener,
+					 long timeout) throws IOException {
+		if (timer == null)
+			throw new IllegalStateException("ConnectionPool not set on a node");
+		if (legacyPeers.containsKey(getKey(pd))) {
+			PeerConnection.exchange(pd, msg, listener, timeout, timer, metrics);
+			return;
+		}
+
+		Pending p = new Pending(pd, msg, listener);
+		for (int attempt = 0; ; attempt++) {
+			PooledConnection pc = acquire(pd);
+			try {
+				pc.send(p, timeout);
+				return;
+			}
+			catch (IOException e) {
+				// a stale pooled connection; retry once on a fresh one
+				remove(pc);
+				if (attempt > 0)
+					throw e;
+			}
+		}
+	}
+
+
+	/**
+	 * Closes all pooled connections.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (eviction != null)
+				eviction.cancel(false);
+			eviction = null;
+		}
+		synchronized (pool) {
+			for (List<PooledConnection> conns : pool.values())
+				for (PooledConnection pc : conns)
+					pc.close();
+			pool.clear();
+		}
+	}
+
+
+	/**
+	 * Sets the registry counting the connections and messages of this
+	 * pool; Node.setConnectionPool sets it to that of the node.
+	 * 
+	 * @param metrics the registry to use
+	 */
+	void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * Sets the clock by which the idle time of connections is measured;
+	 * Node.setConnectionPool and Node.setClock set it to the clock of the
+	 * node.
+	 * 
+	 * @param clock a source of the time in nanoseconds
+	 */
+	void setClock(LongSupplier clock) {
+		this.clock = clock;
+	}
+
+
+	/*
+	 * Returns the time in milliseconds by the clock of the pool.
+	 */
+	private long currentTimeMillis() {
+		return clock.getAsLong() / 1000000;
+	}
+
+
+	/**
+	 * Sets the scheduler on which request timeouts and the eviction of
+	 * idle connections are scheduled; Node.setConnectionPool and 
+	 * Node.setTimer set it to the timer of the node.
+	 * 
+	 * @param timer the scheduler to use
+	 */
+	synchronized void setTimer(ScheduledExecutorService timer) {
+		if (eviction != null)
+			eviction.cancel(false);
+		this.timer = timer;
+		long period = Math.max(idleTimeout / 2, 100);
+		eviction = timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() { evictIdle(); }
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * @param pd peer information
+	 * @return the number of connections currently open to the peer
+	 */
+	public int getConnectionCount(PeerInfo pd) {
+		synchronized (pool) {
+			List<PooledConnection> conns = pool.get(getKey(pd));
+			return conns == null ? 0 : conns.size();
+		}
+	}
+
+
+	/*
+	 * Returns the least busy connection to the peer, opening a new one if
+	 * every connection is busy and the limit allows it.
+	 */
+	private PooledConnection acquire(PeerInfo pd) throws IOException {
+		String key = getKey(pd);
+		synchronized (pool) {
+			while (true) {
+				List<PooledConnection> conns = pool.get(key);
+				Integer n = opening.get(key);
+				int size = (conns == null ? 0 : conns.size()) 
+							+ (n == null ? 0 : n);
+
+				PooledConnection best = null;
+				if (conns != null)
+					for (PooledConnection pc : conns)
+						if (best == null || pc.inflight() < best.inflight())
+							best = pc;
+				if (best != null && (best.inflight() == 0 || size >= maxPerPeer))
+					return best;
+				if (size < maxPerPeer) {
+					opening.put(key, n == null ? 1 : n + 1);
+					break;
+				}
+				
+				// all connections to the peer are still being opened
+				try {
+					pool.wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted waiting for connection");
+				}
+			}
+		}
+
+		// connect outside the lock, having reserved a slot for the peer
+		PooledConnection pc = null;
+		try {
+			pc = new PooledConnection(key, SocketFactory.getSocketFactory()
+										.makeSocket(pd.getHost(), pd.getPort()));
+			metrics.connectionsOpened.labels("out").inc();
+		}
+		catch (IOException e) {
+			metrics.connectionsFailed.inc();
+			throw e;
+		}
+		finally {
+			synchronized (pool) {
+				int n = opening.get(key) - 1;
+				if (n == 0) opening.remove(key);
+				else opening.put(key, n);
+				
+				if (pc != null) {
+					List<PooledConnection> conns = pool.get(key);
+					if (conns == null) {
+						conns = new ArrayList<PooledConnection>();
+						pool.put(key, conns);
+					}
+					conns.add(pc);
+				}
+				pool.notifyAll();
+			}
+		}
+		pc.start();
+		return pc;
+	}
+
+
+	private void remove(PooledConnection pc) {
+		synchronized (pool) {
+			List<PooledConnection> conns = pool.get(pc.key);
+			if (conns != null) {
+				conns.remove(pc);
+				if (conns.isEmpty())
+					pool.remove(pc.key);
+			}
+		}
+		pc.close();
+	}
+
+
+	private void evictIdle() {
+		long now = currentTimeMillis();
+		List<PooledConnection> idle = new ArrayList<PooledConnection>();
+		synchronized (pool) {
+			for (List<PooledConnection> conns : pool.values())
+				for (PooledConnection pc : conns)
+					if (pc.inflight() == 0 && now - pc.lastUsed > idleTimeout)
+						idle.add(pc);
+		}
+		for (PooledConnection pc : idle) {
+			LoggerUtil.getLogger().fine("Evicting idle connection " + pc);
+			remove(pc);
+		}
+	}
+
+
+	/*
+	 * Remembers that the peer does not support pooled connections, for
+	 * the next LEGACYRETRY milliseconds.
+	 */
+	private void markLegacy(final String key) {
+		if (legacyPeers.containsKey(key))
+			return;
+		LoggerUtil.getLogger().fine("Not multiplexing to " + key);
+		legacyPeers.put(key, timer.schedule(new Runnable() {
+			public void run() { legacyPeers.remove(key); }
+		}, LEGACYRETRY, TimeUnit.MILLISECONDS));
+	}
+
+
+	private static String getKey(PeerInfo pd) {
+		return pd.getHost() + ":" + pd.getPort();
+	}
+
+
+	/*
+	 * Signals that the remote peer closed the connection without ever
+	 * replying to a multiplexed request.
+	 */
+	@SuppressWarnings("serial")
+	private static class LegacyPeerException extends IOException {
+		public LegacyPeerException(String msg) { super(msg); }
+	}
+
+
+	/*
+	 * An outstanding request, kept so that it can be resent over a plain
+	 * connection if the peer turns out not to support pooling.
+	 */
+	private static class Pending {
+		PeerInfo pd;
+		PeerMessage msg;
+		ReplyListener listener;
+		ScheduledFuture<?> timeout;
+
+		public Pending(PeerInfo pd, PeerMessage msg, ReplyListener listener) {
+			this.pd = pd;
+			this.msg = msg;
+			this.listener = listener;
+			this.timeout = null;
+		}
+	}
+
+
+	/*
+	 * One persistent connection, with a reader thread that demultiplexes
+	 * incoming replies to the outstanding requests.
+	 */
+	private class PooledConnection implements Runnable {
+		private String key;
+		private SocketInterface s;
+		private Map<Integer,Pending> pending;
+		private volatile long lastUsed;
+		private volatile boolean fresh;   // no request has completed yet
+		private volatile boolean closed;
+
+		public PooledConnection(String key, SocketInterface s) {
+			this.key = key;
+			this.s = s;
+			this.pending = new ConcurrentHashMap<Integer,Pending>();
+			this.lastUsed = currentTimeMillis();
+			this.fresh = true;
+			this.closed = false;
+		}
+
+		public void start() {
+			Thread t = new Thread(this, "ConnectionPool-" + key);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		public int inflight() {
+			return pending.size();
+		}
+
+		public void send(final Pending p, final long timeout) throws IOException {
+			final int reqid = nextReqId.incrementAndGet();
+			pending.put(reqid, p);
+			lastUsed = currentTimeMillis();
+			try {
+				synchronized (s) {
+					if (closed)
+						throw new IOException("Connection closed");
+					PeerConnection.writeBuffers(s, 
+							MuxSession.wrap(MuxSession.REQUEST, reqid, p.msg), true,
+							metrics);
+				}
+				metrics.messagesSent.labels(p.msg.getMsgType()).inc();
+			}
+			catch (IOException e) {
+				pending.remove(reqid);
+				throw e;
+			}
+			
+			if (timeout > 0) {
+				p.timeout = timer.schedule(new Runnable() {
+					public void run() {
+						if (pending.remove(reqid) != null)
+							p.listener.replyFailed(new SocketTimeoutException(
+									"No reply within " + timeout + " ms"));
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		public void run() {
+			boolean replied = false;
+			IOException e = null;
+			try {
+				while (e == null) {
+					PeerMessage msg = new PeerMessage(s);
+					metrics.bytesReceived.add(8 + msg.getMsgDataLength());
+					String type = msg.getMsgType();
+					if (!type.equals(MuxSession.REPLY) && !type.equals(MuxSession.END)) {
+						// the peer answered as if this were a plain connection
+						e = new LegacyPeerException("Not a multiplexed reply: " + msg);
+						break;
+					}
+					
+					Pending p = pending.get(MuxSession.getRequestId(msg));
+					if (p == null) {
+						LoggerUtil.getLogger().fine("Unexpected reply " + msg);
+						continue;
+					}
+					replied = true;
+					if (type.equals(MuxSession.REPLY)) {
+						PeerMessage reply = MuxSession.unwrap(msg);
+						metrics.messagesReceived.labels(reply.getMsgType()).inc();
+						if (MessageBatch.isBatch(reply)) {
+							for (PeerMessage m : MessageBatch.unpack(reply))
+								p.listener.replyReceived(m);
+						}
+						else
+							p.listener.replyReceived(reply);
+					}
+					else if (pending.remove(MuxSession.getRequestId(msg)) != null) {
+						lastUsed = currentTimeMillis();
+						fresh = false;
+						if (p.timeout != null)
+							p.timeout.cancel(false);
+						p.listener.repliesComplete();
+					}
+				}
+			}
+			catch (IOException ex) {
+				if (fresh && !replied)
+					e = new LegacyPeerException("Connection closed without reply");
+				else
+					e = ex;
+				if (!closed)
+					LoggerUtil.getLogger().fine("Pooled connection lost: " + ex);
+			}
+			
+			remove(this);
+			List<Pending> failed = new ArrayList<Pending>(pending.values());
+			pending.clear();
+			if (e instanceof LegacyPeerException)
+				markLegacy(key);
+			
+			for (Pending p : failed) {
+				long remaining = 0;
+				if (p.timeout != null) {
+					remaining = p.timeout.getDelay(TimeUnit.MILLISECONDS);
+					p.timeout.cancel(false);
+				}
+				if (e instanceof LegacyPeerException) {
+					// this reader thread is done; resend the requests here,
+					// within what is left of their timeouts
+					if (p.timeout != null && remaining <= 0)
+						p.listener.replyFailed(new SocketTimeoutException(
+								"No reply within timeout"));
+					else
+						PeerConnection.exchange(p.pd, p.msg, p.listener, remaining, 
+												timer, metrics);
+				}
+				else {
+					p.listener.replyFailed(e);
+				}
+			}
+		}
+
+		public void close() {
+			synchronized (s) {
+				if (closed) return;
+				closed = true;
+			}
+			metrics.connectionsClosed.inc();
+			try {
+				s.close();
+			} catch (IOException e) {
+				LoggerUtil.getLogger().fine("Error closing: " + e);
+			}
+		}
+
+		public String toString() {
+			return "PooledConnection[" + key + ", " + inflight() + " pending]";
+		}
+	}
+}
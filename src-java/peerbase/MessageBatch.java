@@ -0,0 +1,122 @@
+/*
+	File: MessageBatch.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The frame in which several messages are sent at once, so that a 
+ * handler with many replies, such as a list of peers, costs the network
+ * one frame and the receiver one read, rather than one of each per 
+ * message. It is sent as a PeerMessage of type BATCH, whose data is the
+ * messages framed as they would be on their own:
+ * <pre>
+ *   [type (4)] [length (4)] [data] [type (4)] [length (4)] [data] ...
+ * </pre>
+ * PeerConnection.sendBatch sends and recvBatch receives them; a node
+ * that receives a batch request dispatches its messages to their 
+ * handlers in turn, on the same connection. Batches do not nest.
+ * <p>
+ * Nodes older than this frame do not understand it, so a batch is only
+ * sent in reply to a peer known to accept it (see 
+ * PeerConnection.setAcceptsBatches).
+ *
+ * @author PeerBase contributors
+ */
+public class MessageBatch {
+
+	public static final String BATCH = "BTCH";
+	
+	
+	private MessageBatch() {
+	}
+	
+	
+	/**
+	 * Packs the given messages into one BATCH message.
+	 *
+	 * @param msgs the messages
+	 * @return the BATCH message carrying them
+	 */
+	public static PeerMessage pack(List<PeerMessage> msgs) {
+		int len = 0;
+		for (PeerMessage m : msgs)
+			len += 8 + m.getMsgDataLength();
+		ByteBuffer data = ByteBuffer.allocate(len);
+		for (PeerMessage m : msgs) {
+			data.put(m.getMsgTypeBytes(), 0, 4);
+			data.putInt(m.getMsgDataLength());
+			data.put(m.dataBuffer());
+		}
+		data.flip();
+		return new PeerMessage(BATCH, data);
+	}
+	
+	
+	/**
+	 * Unpacks the messages of a BATCH message. The data of the messages
+	 * is shared with the batch, not copied.
+	 *
+	 * @param batch the BATCH message
+	 * @return the messages, in the order they were packed
+	 * @throws IOException if the batch is malformed, or contains another
+	 * batch
+	 */
+	public static List<PeerMessage> unpack(PeerMessage batch) 
+	throws IOException {
+		ByteBuffer data = batch.dataBuffer();
+		List<PeerMessage> msgs = new ArrayList<PeerMessage>();
+		while (data.hasRemaining()) {
+			if (data.remaining() < 8)
+				throw new IOException("Malformed batch: truncated header");
+			byte[] type = new byte[4];
+			data.get(type);
+			int len = data.getInt();
+			if (len < 0 || len > data.remaining())
+				throw new IOException("Malformed batch: bad length " + len);
+			if (new String(type).equals(BATCH))
+				throw new IOException("Malformed batch: nested batch");
+			ByteBuffer body = data.slice();
+			body.limit(len);
+			data.position(data.position() + len);
+			msgs.add(new PeerMessage(type, body));
+		}
+		return msgs;
+	}
+	
+	
+	/**
+	 * @param msg a message
+	 * @return whether the message is a batch
+	 */
+	public static boolean isBatch(PeerMessage msg) {
+		return msg.getMsgType().equals(BATCH);
+	}
+}
@@ -0,0 +1,418 @@
+/*
+	File: Metrics.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A registry of counters, gauges and histograms describing the activity
+ * of the PeerBase system, in the style of Micrometer or the Prometheus
+ * client libraries. Each metric belongs to a family with a name, such as
+ * "peerbase_messages_sent_total", and is distinguished within it by the
+ * values of the family's labels, such as the message type. Updating a
+ * metric costs an adder increment, so metrics can be kept on the fast 
+ * path of message handling; see writeText() for exporting them.
+ * <p>
+ * Each node keeps its own registry (see Node.getMetrics), so that nodes
+ * sharing a process do not mix their counts; connections opened through
+ * the public constructors of PeerConnection, outside any node, are 
+ * counted in the registry returned by getRegistry(). Every registry
+ * holds the metrics kept by PeerBase itself:
+ * <pre>
+ *   peerbase_messages_received_total{type}   requests handled, and replies received
+ *   peerbase_messages_sent_total{type}       requests and replies sent
+ *   peerbase_bytes_received_total            bytes of messages received
+ *   peerbase_bytes_sent_total                bytes of messages sent
+ *   peerbase_handler_seconds{type,handler}   time taken by message handlers
+ *   peerbase_handlers_active                 handlers currently running
+ *   peerbase_connections_opened_total{direction}   "in" or "out"
+ *   peerbase_connections_failed_total        outgoing connections that failed
+ *   peerbase_connections_closed_total        connections closed
+ * </pre>
+ * A family holds at most MAXSERIES combinations of label values; any 
+ * further ones, which can only come from values chosen by remote peers,
+ * are all counted under the label value "other".
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class Metrics {
+	
+	/** The default bucket bounds of histograms, in seconds. */
+	public static final double[] LATENCY_BUCKETS = { 0.0001, 0.00025, 0.0005, 
+			0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+	
+	/** The number of label value combinations a family holds at most. */
+	public static final int MAXSERIES = 1000;
+	
+	private static final Metrics registry = new Metrics();
+	
+	private ConcurrentSkipListMap<String,Family<?>> families;
+	
+	final Family<Counter> messagesReceived;
+	final Family<Counter> messagesSent;
+	final Counter bytesReceived;
+	final Counter bytesSent;
+	final Family<Histogram> handlerSeconds;
+	final Gauge handlersActive;
+	final Family<Counter> connectionsOpened;
+	final Counter connectionsFailed;
+	final Counter connectionsClosed;
+	
+	
+	/**
+	 * Creates a registry holding the PeerBase metrics, all zero.
+	 */
+	public Metrics() {
+		this.families = new ConcurrentSkipListMap<String,Family<?>>();
+		messagesReceived = counter("peerbase_messages_received_total", 
+				"Requests handled and replies received, by message type", "type");
+		messagesSent = counter("peerbase_messages_sent_total", 
+				"Requests and replies sent, by message type", "type");
+		bytesReceived = counter("peerbase_bytes_received_total", 
+				"Bytes of messages received").labels();
+		bytesSent = counter("peerbase_bytes_sent_total", 
+				"Bytes of messages sent").labels();
+		handlerSeconds = histogram("peerbase_handler_seconds", 
+				"Time taken by message handlers", LATENCY_BUCKETS, "type", "handler");
+		handlersActive = gauge("peerbase_handlers_active", 
+				"Message handlers currently running").labels();
+		connectionsOpened = counter("peerbase_connections_opened_total", 
+				"Connections opened, by direction (in or out)", "direction");
+		connectionsFailed = counter("peerbase_connections_failed_total", 
+				"Outgoing connections that could not be opened").labels();
+		connectionsClosed = counter("peerbase_connections_closed_total", 
+				"Connections closed").labels();
+	}
+	
+	
+	/**
+	 * @return the registry of connections that do not belong to a node
+	 */
+	public static Metrics getRegistry() {
+		return registry;
+	}
+	
+	
+	/**
+	 * Returns the counter family with the given name, creating it if
+	 * there is none.
+	 * @param name the name of the family
+	 * @param help a description of the family
+	 * @param labelNames the names of the labels of the family
+	 * @return the family
+	 */
+	public Family<Counter> counter(String name, String help, String... labelNames) {
+		return register(new Family<Counter>(name, help, "counter", labelNames) {
+			Counter create() { return new Counter(); }
+		});
+	}
+	
+	
+	/**
+	 * Returns the gauge family with the given name, creating it if there
+	 * is none.
+	 * @param name the name of the family
+	 * @param help a description of the family
+	 * @param labelNames the names of the labels of the family
+	 * @return the family
+	 */
+	public Family<Gauge> gauge(String name, String help, String... labelNames) {
+		return register(new Family<Gauge>(name, help, "gauge", labelNames) {
+			Gauge create() { return new Gauge(); }
+		});
+	}
+	
+	
+	/**
+	 * Returns the histogram family with the given name, creating it if
+	 * there is none.
+	 * @param name the name of the family
+	 * @param help a description of the family
+	 * @param buckets the upper bounds of the buckets, in increasing order
+	 * @param labelNames the names of the labels of the family
+	 * @return the family
+	 */
+	public Family<Histogram> histogram(String name, String help, 
+									   final double[] buckets, String... labelNames) {
+		return register(new Family<Histogram>(name, help, "histogram", labelNames) {
+			Histogram create() { return new Histogram(buckets); }
+		});
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private <T> Family<T> register(Family<T> family) {
+		Family<?> existing = families.putIfAbsent(family.name, family);
+		if (existing == null)
+			return family;
+		if (!existing.type.equals(family.type))
+			throw new IllegalArgumentException("Metric " + family.name 
+											   + " is a " + existing.type);
+		return (Family<T>)existing;
+	}
+	
+	
+	/**
+	 * Writes every metric in the registry in the Prometheus text format 
+	 * (version 0.0.4), which is also readable as plain text.
+	 * @param out where to write the metrics
+	 */
+	public void writeText(StringBuilder out) {
+		for (Family<?> family : families.values())
+			family.writeText(out);
+	}
+	
+	
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		writeText(sb);
+		return sb.toString();
+	}
+	
+	
+	/*
+	 * Escapes a label value for the text format.
+	 */
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+	
+	
+	private static String format(double d) {
+		if (d == Double.POSITIVE_INFINITY)
+			return "+Inf";
+		if (d == Math.rint(d) && Math.abs(d) < 1e15)
+			return Long.toString((long)d);
+		return Double.toString(d);
+	}
+	
+	
+	/**
+	 * A family of metrics of one type, with one metric for each 
+	 * combination of label values used.
+	 */
+	public static abstract class Family<T> {
+		private String name;
+		private String help;
+		private String type;
+		private String[] labelNames;
+		private ConcurrentHashMap<String,T> metrics;
+		private ConcurrentHashMap<String,String[]> labelValues;
+		
+		Family(String name, String help, String type, String[] labelNames) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.labelNames = labelNames;
+			this.metrics = new ConcurrentHashMap<String,T>();
+			this.labelValues = new ConcurrentHashMap<String,String[]>();
+		}
+		
+		abstract T create();
+		
+		/**
+		 * Returns the metric with the given label values, creating it if
+		 * it does not exist yet. Once the family holds MAXSERIES metrics,
+		 * new combinations of values share the metric whose values are 
+		 * all "other".
+		 * @param values the values of the labels, in the order of their names
+		 * @return the metric
+		 */
+		public T labels(String... values) {
+			if (values.length != labelNames.length)
+				throw new IllegalArgumentException(name + " has labels " 
+												   + Arrays.toString(labelNames));
+			String key = values.length == 1 ? values[0] 
+											: String.join("\u0000", values);
+			T m = metrics.get(key);
+			if (m == null && metrics.size() >= MAXSERIES) {
+				values = new String[values.length];
+				Arrays.fill(values, "other");
+				key = String.join("\u0000", values);
+				m = metrics.get(key);
+			}
+			if (m == null) {
+				T created = create();
+				m = metrics.putIfAbsent(key, created);
+				if (m == null) {
+					m = created;
+					labelValues.put(key, values.clone());
+				}
+			}
+			return m;
+		}
+		
+		void writeText(StringBuilder out) {
+			out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+			for (Map.Entry<String,T> e : metrics.entrySet()) {
+				String[] values = labelValues.get(e.getKey());
+				if (values == null)
+					continue;   // being created
+				StringBuilder labels = new StringBuilder();
+				for (int i = 0; i < values.length; i++) {
+					labels.append(i == 0 ? "" : ",").append(labelNames[i])
+						  .append("=\"").append(escape(values[i])).append('"');
+				}
+				((Metric)e.getValue()).writeText(out, name, labels.toString());
+			}
+		}
+	}
+	
+	
+	/*
+	 * The common interface of the metric types, for writing them out.
+	 */
+	private interface Metric {
+		void writeText(StringBuilder out, String name, String labels);
+	}
+	
+	
+	/**
+	 * A value that only increases, such as a number of messages.
+	 */
+	public static class Counter implements Metric {
+		private LongAdder value = new LongAdder();
+		
+		public void inc() {
+			value.increment();
+		}
+		
+		public void add(long n) {
+			value.add(n);
+		}
+		
+		public long get() {
+			return value.sum();
+		}
+		
+		public void writeText(StringBuilder out, String name, String labels) {
+			out.append(name);
+			if (labels.length() > 0)
+				out.append('{').append(labels).append('}');
+			out.append(' ').append(value.sum()).append('\n');
+		}
+	}
+	
+	
+	/**
+	 * A value that may go up and down, such as a number of threads.
+	 */
+	public static class Gauge implements Metric {
+		private AtomicLong value = new AtomicLong();
+		
+		public void inc() {
+			value.incrementAndGet();
+		}
+		
+		public void dec() {
+			value.decrementAndGet();
+		}
+		
+		public void set(long v) {
+			value.set(v);
+		}
+		
+		public long get() {
+			return value.get();
+		}
+		
+		public void writeText(StringBuilder out, String name, String labels) {
+			out.append(name);
+			if (labels.length() > 0)
+				out.append('{').append(labels).append('}');
+			out.append(' ').append(value.get()).append('\n');
+		}
+	}
+	
+	
+	/**
+	 * A distribution of observed values, such as latencies, counted in
+	 * buckets with fixed upper bounds.
+	 */
+	public static class Histogram implements Metric {
+		private double[] bounds;
+		private LongAdder[] buckets;   // not cumulative; the last is +Inf
+		private DoubleAdder sum;
+		
+		Histogram(double[] bounds) {
+			this.bounds = bounds;
+			this.buckets = new LongAdder[bounds.length + 1];
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+			this.sum = new DoubleAdder();
+		}
+		
+		public void observe(double value) {
+			int i = Arrays.binarySearch(bounds, value);
+			buckets[i >= 0 ? i : -i - 1].increment();
+			sum.add(value);
+		}
+		
+		/**
+		 * Observes a time measured with System.nanoTime, in seconds.
+		 * @param nanos the time in nanoseconds
+		 */
+		public void observeNanos(long nanos) {
+			observe(nanos / 1e9);
+		}
+		
+		public long getCount() {
+			long n = 0;
+			for (LongAdder b : buckets)
+				n += b.sum();
+			return n;
+		}
+		
+		public double getSum() {
+			return sum.sum();
+		}
+		
+		public void writeText(StringBuilder out, String name, String labels) {
+			String sep = labels.length() > 0 ? labels + "," : "";
+			long cumulative = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				cumulative += buckets[i].sum();
+				out.append(name).append("_bucket{").append(sep).append("le=\"")
+				   .append(format(i < bounds.length ? bounds[i] : Double.POSITIVE_INFINITY))
+				   .append("\"} ").append(cumulative).append('\n');
+			}
+			String braces = labels.length() > 0 ? "{" + labels + "}" : "";
+			out.append(name).append("_sum").append(braces).append(' ')
+			   .append(format(sum.sum())).append('\n');
+			out.append(name).append("_count").append(braces).append(' ')
+			   .append(cumulative).append('\n');
+		}
+	}
+}
@@ -0,0 +1,304 @@
+/*
+	File: MuxSession.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.RejectedExecutionException;
+
+import peerbase.socket.SocketInterface;
+
+/**
+ * The server side of a persistent, multiplexed connection opened by a
+ * ConnectionPool. Instead of a single message followed by EOF, the peer
+ * sends any number of request envelopes on the connection, each tagged
+ * with a request id:
+ * <pre>
+ *   MREQ: [request id (4)] [message type (4)] [message data ...]
+ *   MREP: [request id (4)] [message type (4)] [message data ...]
+ *   MEND: [request id (4)]
+ * </pre>
+ * Every request is dispatched to the registered handler as a separate
+ * task, so requests on one connection are processed concurrently. The
+ * handler sees an ordinary PeerConnection; its replies are sent back as
+ * MREP envelopes carrying the request id, and closing the connection
+ * sends an MEND envelope in place of the EOF that ends the replies to
+ * a normal request.
+ *
+ * @author PeerBase contributors
+ */
+class MuxSession {
+
+	public static final String REQUEST = "MREQ";
+	public static final String REPLY = "MREP";
+	public static final String END = "MEND";
+
+	private Node node;
+	private Metrics metrics;
+	private SocketInterface s;
+	private int inflight;
+	private boolean finished;
+
+
+	/**
+	 * @param node the node whose handlers will receive requests
+	 * @param s the socket the session is carried over
+	 */
+	public MuxSession(Node node, SocketInterface s) {
+		this.node = node;
+		this.metrics = node.getMetrics();
+		this.s = s;
+		this.inflight = 0;
+		this.finished = false;
+	}
+
+
+	/**
+	 * Dispatches a request envelope received on this session to the
+	 * appropriate handler, as a task of the node's executor.
+	 *
+	 * @param envelope an MREQ message
+	 */
+	public void dispatch(PeerMessage envelope) {
+		final int reqid = getRequestId(envelope);
+		final PeerMessage msg = unwrap(envelope);
+		synchronized (this) {
+			inflight++;
+		}
+
+		final PeerConnection peerconn = new MuxPeerConnection(reqid);
+		try {
+			node.getExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						node.handleMessage(peerconn, msg);
+					}
+					finally {
+						if (!peerconn.isDetached())
+							peerconn.close();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			LoggerUtil.getLogger().warning("Dropping request: " + e);
+			peerconn.close();
+		}
+	}
+
+
+	/**
+	 * Called when no more requests will arrive on this session. The
+	 * underlying socket is closed as soon as all requests that are still
+	 * being handled have finished.
+	 */
+	public void finish() {
+		boolean closenow;
+		synchronized (this) {
+			finished = true;
+			closenow = inflight == 0;
+		}
+		if (closenow)
+			closeSocket();
+	}
+
+
+	private void send(ByteBuffer[] bufs, boolean flush) throws IOException {
+		synchronized (s) {
+			PeerConnection.writeBuffers(s, bufs, flush, metrics);
+		}
+	}
+
+
+	private void send(ByteBuffer[] bufs, FileChannel file, long position, 
+					  int count) throws IOException {
+		synchronized (s) {
+			PeerConnection.writeRegion(s, bufs, file, position, count, metrics);
+		}
+	}
+
+
+	private void requestDone() {
+		boolean closenow;
+		synchronized (this) {
+			inflight--;
+			closenow = finished && inflight == 0;
+		}
+		if (closenow)
+			closeSocket();
+	}
+
+
+	private void closeSocket() {
+		metrics.connectionsClosed.inc();
+		try {
+			s.close();
+		} catch (IOException e) {
+			LoggerUtil.getLogger().fine("Error closing: " + e);
+		}
+	}
+
+
+	/**
+	 * Packs a message into an envelope of the given type, returned as
+	 * buffers ready for a gathering write. The data of the message is
+	 * not copied.
+	 *
+	 * @param type REQUEST, REPLY or END
+	 * @param reqid the request id
+	 * @param msg the message to wrap, or null (for END)
+	 * @return the packed envelope
+	 */
+	public static ByteBuffer[] wrap(String type, int reqid, PeerMessage msg) {
+		return wrap(type, reqid, msg, 0);
+	}
+
+
+	/**
+	 * Packs a message into an envelope as in wrap(type, reqid, msg), 
+	 * except that the length of the envelope also counts the given number
+	 * of bytes, which the caller sends immediately after the data.
+	 *
+	 * @param type REQUEST or REPLY
+	 * @param reqid the request id
+	 * @param msg the message to wrap
+	 * @param extra the number of bytes to follow the message data
+	 * @return the packed envelope
+	 */
+	public static ByteBuffer[] wrap(String type, int reqid, PeerMessage msg,
+									int extra) {
+		if (msg == null) {
+			ByteBuffer header = ByteBuffer.allocate(12);
+			header.put(type.getBytes(), 0, 4).putInt(4).putInt(reqid);
+			header.flip();
+			return new ByteBuffer[] { header };
+		}
+		
+		ByteBuffer data = msg.dataBuffer();
+		ByteBuffer header = ByteBuffer.allocate(16);
+		header.put(type.getBytes(), 0, 4).putInt(8 + data.remaining() + extra);
+		header.putInt(reqid).put(msg.getMsgTypeBytes(), 0, 4);
+		header.flip();
+		return new ByteBuffer[] { header, data };
+	}
+
+
+	/**
+	 * @param envelope a REQUEST, REPLY or END envelope
+	 * @return the request id of the envelope
+	 */
+	public static int getRequestId(PeerMessage envelope) {
+		return envelope.dataBuffer().getInt(0);
+	}
+
+
+	/**
+	 * @param envelope a REQUEST or REPLY envelope
+	 * @return the message carried in the envelope, sharing its data
+	 */
+	public static PeerMessage unwrap(PeerMessage envelope) {
+		ByteBuffer data = envelope.dataBuffer();
+		byte[] mtype = new byte[4];
+		data.position(4);
+		data.get(mtype);
+		return new PeerMessage(mtype, data);
+	}
+
+
+	/*
+	 * The connection object handed to the handler of one request.
+	 */
+	private class MuxPeerConnection extends PeerConnection {
+		private int reqid;
+		private boolean closed;
+
+		public MuxPeerConnection(int reqid) {
+			super(null, s, metrics);
+			this.reqid = reqid;
+			this.closed = false;
+		}
+
+		public void sendData(PeerMessage msg, boolean flush) {
+			try {
+				send(wrap(REPLY, reqid, msg), flush);
+				metrics.messagesSent.labels(msg.getMsgType()).inc();
+			}
+			catch (IOException e) {
+				LoggerUtil.getLogger().warning("Error sending message: " + e);
+				setSendFailed();
+			}
+		}
+
+		public void sendData(PeerMessage msg, FileChannel file, 
+							 long position, int count) {
+			try {
+				send(wrap(REPLY, reqid, msg, count), file, position, count);
+				metrics.messagesSent.labels(msg.getMsgType()).inc();
+			}
+			catch (IOException e) {
+				LoggerUtil.getLogger().warning("Error sending message: " + e);
+				setSendFailed();
+			}
+		}
+
+		public void flush() {
+			try {
+				synchronized (s) {
+					s.flush();
+				}
+			}
+			catch (IOException e) {
+				LoggerUtil.getLogger().warning("Error sending message: " + e);
+				setSendFailed();
+			}
+		}
+
+		public PeerMessage recvData() {
+			// further requests arrive as envelopes of their own
+			return null;
+		}
+
+		public void close() {
+			synchronized (this) {
+				if (closed) return;
+				closed = true;
+			}
+			try {
+				send(wrap(END, reqid, null), true);
+			}
+			catch (IOException e) {
+				LoggerUtil.getLogger().fine("Error ending request: " + e);
+			}
+			requestDone();
+		}
+
+		public String toString() {
+			return "MuxPeerConnection[" + reqid + ":" + s + "]";
+		}
+	}
+}
@@ -0,0 +1,583 @@
+/*
+	File: NioServer.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+
+import peerbase.socket.ChannelSocketInterface;
+
+/**
+ * An alternative to the thread-per-connection server of the Node main
+ * loop. Incoming connections are accepted on a non-blocking
+ * ServerSocketChannel and spread over a small number of I/O threads,
+ * each running its own Selector. The I/O threads frame PeerMessages
+ * without blocking; complete messages are handed to the node's
+ * registered handlers as tasks of the node's executor, since handlers
+ * are free to block.
+ * <p>
+ * Replies sent by a handler are queued on the connection and written
+ * out by the I/O thread as the channel becomes writable. Closing the
+ * handler's PeerConnection closes the channel once all queued replies
+ * have been written. A connection whose peer announces a message of
+ * more than MAXMESSAGE bytes is closed without reading it.
+ *
+ * @author PeerBase contributors
+ */
+class NioServer {
+
+	private static final int HEADERSIZE = 8;   // 4-byte type, 4-byte length
+	private static final int MAXQUEUED = 1 << 20;  // bytes queued per connection
+	static final int MAXMESSAGE = 64 << 20; // bytes of data per message
+
+	private Node node;
+	private Metrics metrics;
+	private int port;
+	private IoLoop[] loops;
+	private int nextLoop;
+
+
+	/**
+	 * Sets up a server for the given node, listening on the given port,
+	 * with one I/O thread per pair of available processors.
+	 *
+	 * @param node the node whose handlers will receive messages
+	 * @param port the port number to listen on
+	 */
+	public NioServer(Node node, int port) {
+		this(node, port,
+			 Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+
+	/**
+	 * Sets up a server for the given node, listening on the given port.
+	 *
+	 * @param node the node whose handlers will receive messages
+	 * @param port the port number to listen on
+	 * @param iothreads the number of selector threads to use
+	 */
+	public NioServer(Node node, int port, int iothreads) {
+		this.node = node;
+		this.metrics = node.getMetrics();
+		this.port = port;
+		this.loops = new IoLoop[iothreads];
+		this.nextLoop = 0;
+	}
+
+
+	/**
+	 * Runs the accept loop on the calling thread until the node is shut
+	 * down, starting the I/O threads first.
+	 *
+	 * @throws IOException if the server channel cannot be opened
+	 */
+	public void run() throws IOException {
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.socket().setReuseAddress(true);
+		ssc.socket().bind(new InetSocketAddress(port), 5);
+		ssc.configureBlocking(false);
+
+		Selector acceptSelector = Selector.open();
+		ssc.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new IoLoop();
+			Thread t = new Thread(loops[i], "NioServer-io-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		try {
+			while (!node.isShutdown()) {
+				LoggerUtil.getLogger().fine("Listening...");
+				if (acceptSelector.select(Node.SOCKETTIMEOUT) == 0)
+					continue;
+				acceptSelector.selectedKeys().clear();
+
+				SocketChannel sc;
+				while ((sc = ssc.accept()) != null) {
+					metrics.connectionsOpened.labels("in").inc();
+					sc.configureBlocking(false);
+					// queued replies are written together when flushed, so 
+					// Nagle's algorithm would only delay the last of them
+					sc.socket().setTcpNoDelay(true);
+					loops[nextLoop].register(sc);
+					nextLoop = (nextLoop + 1) % loops.length;
+				}
+			}
+		}
+		finally {
+			acceptSelector.close();
+			ssc.close();
+			for (IoLoop loop : loops)
+				if (loop != null) loop.stop();
+		}
+	}
+
+
+	/*
+	 * A selector thread servicing a subset of the open connections.
+	 */
+	private class IoLoop implements Runnable {
+		private Selector selector;
+		private ConcurrentLinkedQueue<Runnable> pending;
+		private volatile boolean running;
+
+		public IoLoop() throws IOException {
+			selector = Selector.open();
+			pending = new ConcurrentLinkedQueue<Runnable>();
+			running = true;
+		}
+
+		public void register(final SocketChannel sc) {
+			execute(new Runnable() {
+				public void run() {
+					try {
+						Connection conn = new Connection(IoLoop.this, sc);
+						conn.key = sc.register(selector, SelectionKey.OP_READ,
+											   conn);
+					}
+					catch (ClosedChannelException e) {
+						LoggerUtil.getLogger().fine("" + e);
+					}
+				}
+			});
+		}
+
+		/* run the given task on this selector thread */
+		public void execute(Runnable task) {
+			pending.add(task);
+			selector.wakeup();
+		}
+
+		public void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					Runnable task;
+					while ((task = pending.poll()) != null)
+						task.run();
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Connection conn = (Connection)key.attachment();
+						try {
+							if (key.isValid() && key.isReadable())
+								conn.doRead();
+							if (key.isValid() && key.isWritable())
+								conn.doWrite();
+						}
+						catch (IOException e) {
+							LoggerUtil.getLogger().fine("NioServer: " + e);
+							conn.abort();
+						}
+					}
+				}
+			}
+			catch (IOException e) {
+				LoggerUtil.getLogger().severe("Stopping I/O loop: " + e);
+			}
+
+			for (SelectionKey key : selector.keys())
+				((Connection)key.attachment()).abort();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				LoggerUtil.getLogger().fine("" + e);
+			}
+		}
+	}
+
+
+	/*
+	 * Per-connection state: the partially read incoming frame and the
+	 * queue of outgoing data.
+	 */
+	private class Connection {
+		private IoLoop loop;
+		private SocketChannel sc;
+		private SelectionKey key;
+
+		private ByteBuffer header;
+		private ByteBuffer body;
+		private MuxSession mux;   // non-null for a pooled connection
+
+		private LinkedList<Object> outq;   // ByteBuffers and FileRegions
+		private long queued;
+		private boolean closing;
+		private boolean closed;
+
+		public Connection(IoLoop loop, SocketChannel sc) {
+			this.loop = loop;
+			this.sc = sc;
+			this.header = ByteBuffer.allocate(HEADERSIZE);
+			this.body = null;
+			this.mux = null;
+			this.outq = new LinkedList<Object>();
+			this.queued = 0;
+			this.closing = false;
+			this.closed = false;
+		}
+
+		/* called on the selector thread when the channel is readable */
+		public void doRead() throws IOException {
+			if (body == null) {
+				if (sc.read(header) < 0) {
+					endOfInput();
+					return;
+				}
+				if (header.hasRemaining())
+					return;
+				// the length comes from the peer: check it before allocating,
+				// and close the connection if it is out of bounds
+				int len = header.getInt(4);
+				if (len < 0 || len > MAXMESSAGE)
+					throw new IOException("Bad message data length " + len);
+				body = ByteBuffer.allocate(len);
+			}
+
+			if (body.hasRemaining() && sc.read(body) < 0) {
+				endOfInput();
+				return;
+			}
+			if (body.hasRemaining())
+				return;
+
+			byte[] type = new byte[4];
+			header.flip();
+			header.get(type);
+			body.flip();
+			PeerMessage msg = new PeerMessage(type, body);
+			metrics.bytesReceived.add(8 + body.limit());
+			header.clear();
+			body = null;
+
+			if (mux == null && msg.getMsgType().equals(MuxSession.REQUEST))
+				mux = new MuxSession(node, new ConnectionSocket(this));
+			if (mux != null) {
+				// a pooled connection: keep reading further requests
+				mux.dispatch(msg);
+				return;
+			}
+
+			// one request per connection; stop reading and let the handler
+			// reply
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			try {
+				node.getExecutor().execute(new Dispatcher(this, msg));
+			}
+			catch (RejectedExecutionException e) {
+				LoggerUtil.getLogger().warning("Dropping connection: " + e);
+				abort();
+			}
+		}
+
+		private void endOfInput() {
+			if (mux == null) {
+				abort();
+				return;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			mux.finish();
+		}
+
+		/* called on the selector thread when the channel is writable */
+		public void doWrite() throws IOException {
+			synchronized (this) {
+				while (!outq.isEmpty()) {
+					if (outq.getFirst() instanceof FileRegion) {
+						FileRegion region = (FileRegion)outq.getFirst();
+						queued -= region.transferTo(sc);
+						if (region.count > 0)
+							break;   // socket buffer full; wait for OP_WRITE
+						region.done = true;
+						outq.removeFirst();
+						continue;
+					}
+					
+					// write all buffers up to the next file region at once
+					int n = 0;
+					while (n < outq.size() && outq.get(n) instanceof ByteBuffer)
+						n++;
+					ByteBuffer[] bufs = outq.subList(0, n).toArray(new ByteBuffer[n]);
+					queued -= sc.write(bufs);
+					for (ByteBuffer b : bufs) {
+						if (b.hasRemaining())
+							break;
+						outq.removeFirst();
+					}
+					if (bufs[n - 1].hasRemaining())
+						break;   // socket buffer full; wait for OP_WRITE
+				}
+				notifyAll();
+				if (!outq.isEmpty())
+					return;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				if (closing)
+					abort();
+			}
+		}
+
+		/* called by a handler thread to queue outgoing data; the buffers
+		 * are written as they are, without copying, once the queue is 
+		 * flushed */
+		public void enqueue(ByteBuffer[] bufs, boolean flush) throws IOException {
+			synchronized (this) {
+				if (queued > MAXQUEUED)
+					requestWrite();
+				while (queued > MAXQUEUED && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while queueing: " + e);
+					}
+				}
+				if (closed)
+					throw new IOException("Connection closed");
+				for (ByteBuffer b : bufs) {
+					outq.add(b);
+					queued += b.remaining();
+				}
+			}
+			if (flush)
+				requestWrite();
+		}
+
+		/* called by a handler thread to send a region of a file; returns
+		 * once the region has been written, so the file may then be closed */
+		public void transfer(FileChannel file, long position, long count) 
+		throws IOException {
+			FileRegion region = new FileRegion(file, position, count);
+			synchronized (this) {
+				while (queued > MAXQUEUED && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while queueing: " + e);
+					}
+				}
+				if (closed)
+					throw new IOException("Connection closed");
+				outq.add(region);
+				queued += count;
+			}
+			requestWrite();
+			synchronized (this) {
+				while (!region.done && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while sending file: " + e);
+					}
+				}
+				if (!region.done)
+					throw new IOException("Connection closed");
+			}
+		}
+
+		private void requestWrite() {
+			loop.execute(new Runnable() {
+				public void run() {
+					if (key.isValid())
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			});
+		}
+
+		/* called by a handler thread when it has finished replying */
+		public void requestClose() {
+			synchronized (this) {
+				closing = true;
+			}
+			loop.execute(new Runnable() {
+				public void run() {
+					if (!key.isValid())
+						return;
+					try {
+						doWrite();
+					} catch (IOException e) {
+						abort();
+					}
+				}
+			});
+		}
+
+		public void abort() {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			if (key != null)
+				key.cancel();
+			try {
+				sc.close();
+			} catch (IOException e) {
+				LoggerUtil.getLogger().fine("" + e);
+			}
+		}
+
+		public String toString() {
+			return "NioServer.Connection[" + sc.socket().getRemoteSocketAddress() + "]";
+		}
+	}
+
+
+	/*
+	 * A region of a file queued for sending with FileChannel.transferTo.
+	 */
+	private static class FileRegion {
+		private FileChannel file;
+		private long position;
+		private long count;      // bytes still to be sent
+		private boolean done;
+
+		public FileRegion(FileChannel file, long position, long count) {
+			this.file = file;
+			this.position = position;
+			this.count = count;
+			this.done = false;
+		}
+
+		/* sends as much of the region as the socket will take */
+		public long transferTo(SocketChannel sc) throws IOException {
+			long n = file.transferTo(position, count, sc);
+			if (n == 0 && position >= file.size())
+				throw new EOFException("File ended " + count + " bytes early");
+			position += n;
+			count -= n;
+			return n;
+		}
+	}
+
+
+	/*
+	 * Runs the registered handler for a complete message as a task of
+	 * the node's executor.
+	 */
+	private class Dispatcher implements Runnable {
+		private Connection conn;
+		private PeerMessage msg;
+
+		public Dispatcher(Connection conn, PeerMessage msg) {
+			this.conn = conn;
+			this.msg = msg;
+		}
+
+		public void run() {
+			PeerConnection peerconn = new PeerConnection(null,
+											new ConnectionSocket(conn), metrics);
+			try {
+				node.handleMessage(peerconn, msg);
+			}
+			finally {
+				if (LoggerUtil.getLogger().isLoggable(Level.FINE))
+					LoggerUtil.getLogger().fine("Disconnecting incoming: " + conn);
+				if (!peerconn.isDetached())
+					peerconn.close();
+			}
+		}
+	}
+
+
+	/*
+	 * The socket view of a connection that is handed to handlers. Writes
+	 * are queued for the I/O thread, which is asked to send them when they
+	 * are flushed; nothing further can be read, since the request message
+	 * has already been framed by the I/O thread.
+	 */
+	private class ConnectionSocket implements ChannelSocketInterface {
+		private Connection conn;
+
+		public ConnectionSocket(Connection conn) {
+			this.conn = conn;
+		}
+
+		public void write(byte[] b) throws IOException {
+			conn.enqueue(new ByteBuffer[] { ByteBuffer.wrap(b) }, true);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			conn.enqueue(new ByteBuffer[] { 
+					ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)) }, false);
+		}
+
+		public void write(ByteBuffer[] srcs) throws IOException {
+			conn.enqueue(srcs, false);
+		}
+
+		public void flush() throws IOException {
+			conn.requestWrite();
+		}
+
+		public void transferFrom(FileChannel src, long position, long count)
+		throws IOException {
+			conn.transfer(src, position, count);
+		}
+
+		public int read() throws IOException {
+			return -1;
+		}
+
+		public int read(byte[] b) throws IOException {
+			return -1;
+		}
+
+		public int readFully(byte[] b, int off, int len) throws IOException {
+			return -1;
+		}
+
+		public void close() throws IOException {
+			conn.requestClose();
+		}
+
+		public String toString() {
+			return conn.toString();
+		}
+	}
+}
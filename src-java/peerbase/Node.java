@@ -27,15 +27,30 @@
 package peerbase;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
 
 import peerbase.socket.SocketFactory;
 import peerbase.socket.SocketInterface;
@@ -57,77 +72,355 @@ public class Node {
 	
 	/*
 	 *  This class is used to respond to and handle incoming connections
-	 * in a separate thread.
+	 * as a separate task of the node's executor.
 	 */
-	private class PeerHandler extends Thread {
+	private class PeerHandler implements Runnable {
 		private SocketInterface s;
 		
-		public PeerHandler(Socket socket) throws IOException {
-			s = SocketFactory.getSocketFactory().makeSocket(socket);
+		public PeerHandler(SocketInterface s) {
+			this.s = s;
 		}
 		
 		public void run() {
-			LoggerUtil.getLogger().fine("New PeerHandler: " + s);
+			if (LoggerUtil.getLogger().isLoggable(Level.FINE))
+				LoggerUtil.getLogger().fine("New PeerHandler: " + s);
 			
-			PeerConnection peerconn = new PeerConnection(null, s);
-			PeerMessage peermsg = peerconn.recvData();
-			if (!handlers.containsKey(peermsg.getMsgType())) {
-				LoggerUtil.getLogger().fine("Not handled: " + peermsg);
+			PeerConnection peerconn = new PeerConnection(null, s, metrics);
+			try {
+				PeerMessage peermsg = peerconn.recvData();
+				if (peermsg != null 
+						&& peermsg.getMsgType().equals(MuxSession.REQUEST)) {
+					// a pooled connection: keep reading requests until EOF.
+					// The session owns the socket from here on, and closes it
+					// once the last request has been handled.
+					peerconn.detach();
+					MuxSession session = new MuxSession(Node.this, s);
+					try {
+						while (peermsg != null) {
+							session.dispatch(peermsg);
+							peermsg = peerconn.recvData();
+						}
+						LoggerUtil.getLogger().fine("Multiplexed connection ended: " + s);
+					}
+					finally {
+						session.finish();
+					}
+					return;
+				}
+				
+				if (peermsg != null)
+					handleMessage(peerconn, peermsg);
 			}
-			else {
-				LoggerUtil.getLogger().finer("Handling: " + peermsg);
-				handlers.get(peermsg.getMsgType()).handleMessage(peerconn, 
-																 peermsg);
+			finally {
+				if (LoggerUtil.getLogger().isLoggable(Level.FINE))
+					LoggerUtil.getLogger().fine("Disconnecting incoming: " + peerconn);
+				// NOTE: log message should indicate null peerconn host
+				
+				if (!peerconn.isDetached())
+					peerconn.close();
 			}
-			LoggerUtil.getLogger().fine("Disconnecting incoming: " + peerconn);
-			// NOTE: log message should indicate null peerconn host
-			
-			peerconn.close();
 		}
 	}
 	
 	
 	/*
 	 * This class is used to set up "stabilizer" functions to run at
-	 * specified intervals
+	 * specified intervals. Each run is triggered by the node's timer and
+	 * carried out as a task of the node's executor, so that a slow 
+	 * stabilizer does not hold up the timer. A run that is due while the
+	 * previous one is still in progress is skipped.
 	 */
-	private class StabilizerRunner extends Thread {
+	private class StabilizerRunner implements Runnable {
 		private StabilizerInterface st;
-		private int delay;   // milliseconds
+		private int delay;    // milliseconds
+		private int mode;     // FIXED_RATE or FIXED_DELAY
+		private int jitter;   // milliseconds
+		private long next;    // time of the next run, without jitter (fixed rate)
+		private AtomicBoolean running;
+		private volatile boolean cancelled;
+		private volatile ScheduledFuture<?> pending;
 		
-		public StabilizerRunner(StabilizerInterface st, int delay) {
+		public StabilizerRunner(StabilizerInterface st, int delay, int mode, 
+								int jitter) {
 			this.st = st;
 			this.delay = delay;
+			this.mode = mode;
+			this.jitter = jitter;
+			this.running = new AtomicBoolean(false);
+			this.cancelled = false;
+		}
+		
+		public void start() {
+			// the first run is spread over a whole interval
+			long first = (long)(Math.random() * delay);
+			next = currentTimeMillis() + first;
+			schedule(first);
+		}
+		
+		public void cancel() {
+			cancelled = true;
+			ScheduledFuture<?> f = pending;
+			if (f != null)
+				f.cancel(false);
 		}
 		
+		private void schedule(long wait) {
+			if (cancelled || shutdown)
+				return;
+			long extra = jitter > 0 ? (long)(Math.random() * jitter) : 0;
+			try {
+				pending = timer.schedule(this, Math.max(0, wait) + extra, 
+										 TimeUnit.MILLISECONDS);
+			}
+			catch (RejectedExecutionException e) {
+				LoggerUtil.getLogger().fine("Stabilizer stopped: " + e);
+			}
+		}
+		
+		/* called by the timer when a run is due */
 		public void run() {
-			while (true) {
-				st.stabilizer();
-				try {
-					Thread.sleep(delay);
-				} catch (InterruptedException e) {
-					LoggerUtil.getLogger().fine(""+e);
-				}
+			if (cancelled || shutdown)
+				return;
+			if (mode == FIXED_RATE) {
+				// scheduled from the previous due time, so runs do not drift
+				next += delay;
+				schedule(next - currentTimeMillis());
+			}
+			
+			if (!running.compareAndSet(false, true)) {
+				LoggerUtil.getLogger().fine("Stabilizer still running; skipping");
+				return;
+			}
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							st.stabilize();
+						}
+						catch (RuntimeException e) {
+							LoggerUtil.getLogger().warning("Stabilizer failed: " + e);
+						}
+						finally {
+							running.set(false);
+							if (mode == FIXED_DELAY)
+								schedule(delay);
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				LoggerUtil.getLogger().warning("Stabilizer run dropped: " + e);
+				running.set(false);
+				if (mode == FIXED_DELAY)
+					schedule(delay);
 			}
 		}
 	}
 
 	
+	/*
+	 * The built-in handler for ROUTE messages. A message addressed to this
+	 * node is unwrapped and dispatched to the handler for its own type; any
+	 * other is passed on to the next hop chosen by the router, or dropped
+	 * at once if the router has none. The replies from the next hop are
+	 * relayed back on the incoming connection as they arrive, so the chain
+	 * of open connections between the source and the destination forms
+	 * the reverse path.
+	 * 
+	 * The handler does not wait for the relay: it detaches the incoming
+	 * connection, which the exchange with the next hop closes when it
+	 * ends, so no handler thread is held per hop. A relay is abandoned
+	 * after a share of RELAYTIMEOUT proportional to the hops the message
+	 * may still take, so that each hop gives up before the one before it.
+	 */
+	private class RouteHandler implements HandlerInterface {
+		public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
+			RoutedMessage rm;
+			try {
+				rm = RoutedMessage.fromPeerMessage(msg);
+			}
+			catch (IOException e) {
+				LoggerUtil.getLogger().warning("Dropping routed message: " + e);
+				return;
+			}
+			
+			if (rm.getDestination().equals(getId())) {
+				Node.this.handleMessage(peerconn, rm.getMessage());
+				return;
+			}
+			if (rm.getHopLimit() <= 0) {
+				LoggerUtil.getLogger().fine("Hop limit reached: " + rm);
+				return;
+			}
+			PeerInfo pd = router == null ? null : router.route(rm.getDestination());
+			if (pd == null || pd.getId().equals(getId())) {
+				LoggerUtil.getLogger().fine("Unable to forward " + rm);
+				return;
+			}
+			
+			if (LoggerUtil.getLogger().isLoggable(Level.FINER))
+				LoggerUtil.getLogger().finer("Forwarding " + rm + " to " + pd.getId());
+			int hops = Math.min(rm.getHopLimit(), RoutedMessage.MAXHOPS);
+			relay(peerconn, pd, routeTo(pd, rm.nextHop()), 
+				  (long)RELAYTIMEOUT * hops / RoutedMessage.MAXHOPS);
+		}
+		
+		private void relay(final PeerConnection peerconn, PeerInfo pd, 
+						   PeerMessage tosend, long timeout) {
+			peerconn.detach();
+			connectAndSendAsync(pd, tosend, new ReplyListener() {
+				public void replyReceived(PeerMessage reply) {
+					if (!peerconn.sendFailed())
+						peerconn.sendData(reply);
+				}
+				public void repliesComplete() {
+					peerconn.close();
+				}
+				public void replyFailed(IOException e) {
+					LoggerUtil.getLogger().fine("Forwarding failed: " + e);
+					peerconn.close();
+				}
+			}, timeout);
+		}
+	}
+	
+	
+	/*
+	 * Passes the replies of an exchange on to another listener, recording
+	 * the outcome of the exchange in the scores of the peer.
+	 */
+	private class ScoringListener implements ReplyListener {
+		private PeerInfo pd;
+		private ReplyListener listener;
+		
+		public ScoringListener(PeerInfo pd, ReplyListener listener) {
+			this.pd = pd;
+			this.listener = listener;
+		}
+		
+		public void replyReceived(PeerMessage msg) {
+			listener.replyReceived(msg);
+		}
+		
+		public void repliesComplete() {
+			recordOutcome(pd, true);
+			listener.repliesComplete();
+		}
+		
+		public void replyFailed(IOException e) {
+			recordOutcome(pd, false);
+			listener.replyFailed(e);
+		}
+	}
+	
+	
+	/*
+	 * Passes the replies of an exchange on to another listener until the
+	 * exchange ends or its deadline passes, whichever comes first. The 
+	 * deadline is set when the exchange is submitted, so that it also 
+	 * bounds the time spent waiting for a thread to run the exchange.
+	 */
+	private class DeadlineListener implements ReplyListener {
+		private ReplyListener listener;
+		private AtomicBoolean done;
+		private ScheduledFuture<?> expiry;   // null if there is no deadline
+		
+		public DeadlineListener(ReplyListener listener, final long timeout) {
+			this.listener = listener;
+			this.done = new AtomicBoolean(false);
+			if (timeout > 0) {
+				expiry = timer.schedule(new Runnable() {
+					public void run() {
+						replyFailed(new SocketTimeoutException(
+								"No reply within " + timeout + " ms"));
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		/*
+		 * Returns the time left before the deadline in milliseconds, 0 if
+		 * there is no deadline, or -1 if the exchange is already over.
+		 * The time is read from the timer, so that it follows the timer's
+		 * clock.
+		 */
+		public long remaining() {
+			if (done.get())
+				return -1;
+			if (expiry == null)
+				return 0;
+			long left = expiry.getDelay(TimeUnit.MILLISECONDS);
+			return left > 0 ? left : -1;
+		}
+		
+		public void replyReceived(PeerMessage msg) {
+			if (!done.get())
+				listener.replyReceived(msg);
+		}
+		
+		public void repliesComplete() {
+			if (done.compareAndSet(false, true)) {
+				if (expiry != null)
+					expiry.cancel(false);
+				listener.repliesComplete();
+			}
+		}
+		
+		public void replyFailed(IOException e) {
+			if (done.compareAndSet(false, true)) {
+				if (expiry != null)
+					expiry.cancel(false);
+				listener.replyFailed(e);
+			}
+		}
+	}
+	
+	
 	//********************************************************************
 	// PEERNODE CLASS MEMBERS
 	//
 	
-	private static final int SOCKETTIMEOUT = 2000; // milliseconds
+	/** Server mode: accept on a blocking ServerSocket, one thread per
+	 * incoming connection. */
+	public static final int BLOCKING_SERVER = 0;
+	/** Server mode: a Selector-based event loop, with a small number of
+	 * I/O threads framing incoming messages without blocking. */
+	public static final int NIO_SERVER = 1;
+	
+	static final int SOCKETTIMEOUT = 2000; // milliseconds
+	static final int RELAYTIMEOUT = 30000; // milliseconds
+	
+	/** Stabilizer schedule: runs start at a fixed interval. */
+	public static final int FIXED_RATE = 0;
+	/** Stabilizer schedule: each run starts a fixed time after the previous
+	 * one finished. */
+	public static final int FIXED_DELAY = 1;
+	
+	/** The fraction by which a candidate's cost must be lower than that 
+	 * of the worst neighbor for offerPeer to replace it. */
+	public static final double REPLACEMARGIN = 0.25;
 	
 	private PeerInfo myInfo;
+	private int serverMode;
 	
 	private int maxPeers;  // maximum size of peers list; 0 means unlimited
-	private Hashtable<String,PeerInfo> peers;
+	private ConcurrentHashMap<String,PeerInfo> peers;
+	private AtomicInteger peerCount;  // entries in peers, plus slots reserved
 	
-	private Hashtable<String,HandlerInterface> handlers;
+	private PeerScores scores;
+	
+	private ConcurrentHashMap<String,HandlerInterface> handlers;
 	private RouterInterface router;
 	
-	private boolean shutdown;  // node is in shutdown mode?
+	private TaskExecutor executor;
+	private TaskExecutor ioExecutor;
+	private ConnectionPool connpool;
+	private ScheduledExecutorService timer;
+	private volatile LongSupplier clock;   // nanoseconds
+	private Metrics metrics;
+	private ConcurrentHashMap<StabilizerInterface,StabilizerRunner> stabilizers;
+	
+	private volatile boolean shutdown;  // node is in shutdown mode?
 	
 	
 	/**
@@ -138,6 +431,23 @@ public class Node {
 	 * @param info the id and host/port information for this node
 	 */
 	public Node(int maxPeers, PeerInfo info) {
+		this(maxPeers, info, BLOCKING_SERVER);
+	}
+	
+	
+	/**
+	 * Initialize this node with the given info, the specified
+	 * limit on the size of the peer list, and the given mode of
+	 * accepting incoming connections.
+	 * 
+	 * @param maxPeers the maximum size of the peer list (0 means 'no limit')
+	 * @param info the id and host/port information for this node
+	 * @param serverMode either BLOCKING_SERVER or NIO_SERVER
+	 */
+	public Node(int maxPeers, PeerInfo info, int serverMode) {
+		if (serverMode != BLOCKING_SERVER && serverMode != NIO_SERVER)
+			throw new IllegalArgumentException("Unknown server mode: " 
+												+ serverMode);
 		
 		if (info.getHost() == null)
 			info.setHost(getHostname());
@@ -146,12 +456,32 @@ public class Node {
 		
 		this.myInfo = info;
 		this.maxPeers = maxPeers;
+		this.serverMode = serverMode;
 		
-		this.peers = new Hashtable<String,PeerInfo>();
-		this.handlers = new Hashtable<String,HandlerInterface>();
+		this.peers = new ConcurrentHashMap<String,PeerInfo>();
+		this.peerCount = new AtomicInteger(0);
+		this.scores = new PeerScores();
+		this.handlers = new ConcurrentHashMap<String,HandlerInterface>();
 		this.router = null;
+		this.executor = TaskExecutor.newThreadPerTask();
+		this.ioExecutor = TaskExecutor.newThreadPerTask();
+		this.connpool = null;
+		this.metrics = new Metrics();
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Node-timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.clock = new LongSupplier() {
+			public long getAsLong() { return System.nanoTime(); }
+		};
 		
+		this.stabilizers = new ConcurrentHashMap<StabilizerInterface,StabilizerRunner>();
 		this.shutdown = false;
+		
+		handlers.put(RoutedMessage.ROUTE, new RouteHandler());
 	}
 
 	
@@ -199,7 +529,9 @@ public class Node {
 
 
 	/**
-	 * Create a socket to listen for incoming connections.
+	 * Create a socket to listen for incoming connections. The socket is
+	 * opened through a ServerSocketChannel, so that accepted connections
+	 * have channels and can send files without copying them into memory.
 	 * @param port the port number to listen on, or 0 to use any free port
 	 * @param backlog he maximum length of the queue
 	 * @return the server socket
@@ -207,8 +539,9 @@ public class Node {
 	 */
 	public ServerSocket makeServerSocket(int port, int backlog) 
 	throws IOException {
-		ServerSocket s = new ServerSocket(port, backlog);
+		ServerSocket s = ServerSocketChannel.open().socket();
 		s.setReuseAddress(true);
+		s.bind(new InetSocketAddress(port), backlog);
 		return s;
 	}
 	
@@ -219,6 +552,11 @@ public class Node {
 	 * to decide the next immediate peer to actually send the message to, based on 
 	 * the peer identifier of the final destination. If no router function (object)
 	 *  has been registered, it will not work. 
+	 * <p>
+	 * If the next peer is not the destination itself, the message is sent 
+	 * to it wrapped in a RoutedMessage, which each peer on the way passes 
+	 * on according to its own router, and the replies of the destination 
+	 * are relayed back along the same path.
 	 * 
 	 * @param peerid the destination peer identifier
 	 * @param msgtype the type of the message being send
@@ -237,7 +575,28 @@ public class Node {
 			return new ArrayList<PeerMessage>();
 		}
 		
-		return connectAndSend(pd, msgtype, msgdata, waitreply);
+		PeerMessage msg = new PeerMessage(msgtype, msgdata);
+		return connectAndSend(pd, routeTo(pd, peerid, msg), waitreply);
+	}
+	
+	
+	/*
+	 * Returns the message to send to the next hop pd so that it reaches
+	 * the peer with the given id: the message itself if pd is that peer,
+	 * or else a ROUTE envelope carrying it.
+	 */
+	private PeerMessage routeTo(PeerInfo pd, String peerid, PeerMessage msg) {
+		if (pd.getId().equals(peerid))
+			return msg;
+		return routeTo(pd, new RoutedMessage(peerid, getId(), 
+											 RoutedMessage.MAXHOPS, msg));
+	}
+	
+	
+	private PeerMessage routeTo(PeerInfo pd, RoutedMessage rm) {
+		if (pd.getId().equals(rm.getDestination()))
+			return rm.getMessage();
+		return rm.toPeerMessage();
 	}
 
 
@@ -253,38 +612,261 @@ public class Node {
 	 */
 	public List<PeerMessage> connectAndSend(PeerInfo pd, String msgtype, 
 					String msgdata, boolean waitreply) {
+		return connectAndSend(pd, new PeerMessage(msgtype, msgdata), waitreply);
+	}
+	
+	
+	/**
+	 * Connects to the specified peer and sends a message, optionally waiting
+	 * and returning any replies. If a connection pool has been set for this
+	 * node, a pooled connection to the peer is used.
+	 * 
+	 * @param pd the peer information
+	 * @param tosend the message to send
+	 * @param waitreply whether to wait for reply(ies)
+	 * @return list of replies (may be empty if error occurred)
+	 */
+	public List<PeerMessage> connectAndSend(PeerInfo pd, PeerMessage tosend, 
+					boolean waitreply) {
+		if (connpool != null) {
+			try {
+				List<PeerMessage> msgreply = connpool.send(pd, tosend, waitreply);
+				recordOutcome(pd, true);
+				return msgreply;
+			}
+			catch (IOException e) {
+				LoggerUtil.getLogger().warning("Error: " + e + "/"
+						+ pd + "/" + tosend.getMsgType());
+				recordOutcome(pd, false);
+				return new ArrayList<PeerMessage>();
+			}
+		}
+		
 		List<PeerMessage> msgreply = new ArrayList<PeerMessage>();
 		try {
-			PeerConnection peerconn = new PeerConnection(pd);
-			PeerMessage tosend = new PeerMessage(msgtype, msgdata);
+			PeerConnection peerconn = new PeerConnection(pd, 0, metrics);
 			peerconn.sendData(tosend);
-			LoggerUtil.getLogger().fine("Sent " + tosend + "/" + peerconn);
+			if (LoggerUtil.getLogger().isLoggable(Level.FINE))
+				LoggerUtil.getLogger().fine("Sent " + tosend + "/" + peerconn);
 			
 			if (waitreply) {
-				PeerMessage onereply = peerconn.recvData();
-				while (onereply != null) {
-					msgreply.add(onereply);
-					LoggerUtil.getLogger().fine("Got reply " + onereply);
-					onereply = peerconn.recvData();
+				List<PeerMessage> replies = peerconn.recvBatch();
+				while (replies != null) {
+					msgreply.addAll(replies);
+					if (LoggerUtil.getLogger().isLoggable(Level.FINE))
+						LoggerUtil.getLogger().fine("Got replies " + replies);
+					replies = peerconn.recvBatch();
 				}
 			}
 			
 			peerconn.close();
+			recordOutcome(pd, true);
 		}
 		catch (IOException e) {
 			LoggerUtil.getLogger().warning("Error: " + e + "/"
-					+ pd + "/" + msgtype);
+					+ pd + "/" + tosend.getMsgType());
+			recordOutcome(pd, false);
 		}
 		return msgreply;
 	}
 	
 	
+	private void recordOutcome(PeerInfo pd, boolean success) {
+		if (pd.getId() == null)
+			return;
+		if (success)
+			scores.recordSuccess(pd.getId());
+		else
+			scores.recordFailure(pd.getId());
+	}
+	
+	
+	/**
+	 * Dispatches a message received on the given connection to the
+	 * handler registered for its type, if any. The messages of a BATCH
+	 * are dispatched in turn, their handlers all replying on the same
+	 * connection, which is marked as accepting batches in reply.
+	 * 
+	 * @param peerconn the connection the message arrived on
+	 * @param peermsg the message received
+	 */
+	void handleMessage(PeerConnection peerconn, PeerMessage peermsg) {
+		String type = peermsg.getMsgType();
+		if (type.equals(MessageBatch.BATCH)) {
+			metrics.messagesReceived.labels(type).inc();
+			peerconn.setAcceptsBatches(true);
+			try {
+				// unpack rejects nested batches, so this recurses only once
+				for (PeerMessage msg : MessageBatch.unpack(peermsg))
+					handleMessage(peerconn, msg);
+			}
+			catch (IOException e) {
+				LoggerUtil.getLogger().warning("Dropping batch: " + e);
+			}
+			return;
+		}
+		HandlerInterface handler = handlers.get(type);
+		// types without a handler are counted together, so that peers 
+		// cannot add labels at will
+		metrics.messagesReceived.labels(handler == null ? "other" : type).inc();
+		if (handler == null) {
+			if (LoggerUtil.getLogger().isLoggable(Level.FINE))
+				LoggerUtil.getLogger().fine("Not handled: " + peermsg);
+			return;
+		}
+		
+		if (LoggerUtil.getLogger().isLoggable(Level.FINER))
+			LoggerUtil.getLogger().finer("Handling: " + peermsg);
+		metrics.handlersActive.inc();
+		long start = System.nanoTime();
+		try {
+			handler.handleMessage(peerconn, peermsg);
+		}
+		finally {
+			metrics.handlersActive.dec();
+			metrics.handlerSeconds.labels(type, handler.getClass().getName())
+				.observeNanos(System.nanoTime() - start);
+		}
+	}
+	
+	
+	/**
+	 * @return the registry of metrics describing the activity of this
+	 * node
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	
+	/**
+	 * Sets the registry in which the activity of this node is counted, 
+	 * for example to add up the metrics of several nodes of a process in 
+	 * one registry. By default each node has its own. This should be 
+	 * called before the main loop is started and before a connection 
+	 * pool is set.
+	 * 
+	 * @param metrics the registry to use
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	
+	/**
+	 * Attempts to route and send a message to the specified peer without
+	 * waiting for the replies. This is the asynchronous counterpart of
+	 * sendToPeer.
+	 * 
+	 * @param peerid the destination peer identifier
+	 * @param msgtype the type of the message being send
+	 * @param msgdata the message data
+	 * @param timeout the time (in milliseconds) to wait for all replies, 
+	 * or 0 to wait indefinitely
+	 * @return a future completed with the list of replies (empty if the 
+	 * message could not be routed), or completed exceptionally if the
+	 * exchange failed or timed out
+	 */
+	public CompletableFuture<List<PeerMessage>> sendToPeerAsync(String peerid,
+					String msgtype, String msgdata, long timeout) {
+		PeerInfo pd = null;
+		if (router != null)
+			pd = router.route(peerid);
+		if (pd == null) {
+			LoggerUtil.getLogger().severe(
+				String.format("Unable to route %s to %s", msgtype, peerid));
+			return CompletableFuture.completedFuture(
+							(List<PeerMessage>)new ArrayList<PeerMessage>());
+		}
+		
+		PeerMessage msg = new PeerMessage(msgtype, msgdata);
+		return connectAndSendAsync(pd, routeTo(pd, peerid, msg), timeout);
+	}
+	
+	
+	/**
+	 * Connects to the specified peer and sends a message without waiting
+	 * for the replies. This is the asynchronous counterpart of 
+	 * connectAndSend.
+	 * 
+	 * @param pd the peer information
+	 * @param tosend the message to send
+	 * @param timeout the time (in milliseconds), from this call, to wait 
+	 * for all replies, or 0 to wait indefinitely
+	 * @return a future completed with the list of replies, or completed 
+	 * exceptionally if the exchange failed or timed out
+	 */
+	public CompletableFuture<List<PeerMessage>> connectAndSendAsync(PeerInfo pd,
+					PeerMessage tosend, long timeout) {
+		ReplyCollector rc = new ReplyCollector();
+		connectAndSendAsync(pd, tosend, rc, timeout);
+		return rc.getFuture();
+	}
+	
+	
+	/**
+	 * Connects to the specified peer and sends a message without waiting
+	 * for the replies, which are instead passed to the listener one at 
+	 * a time as they arrive. The exchange is run by the I/O executor, so
+	 * a task of the node's executor may wait for it without tying up a 
+	 * thread that the exchange itself needs.
+	 * 
+	 * @param pd the peer information
+	 * @param tosend the message to send
+	 * @param listener the listener receiving the replies
+	 * @param timeout the time (in milliseconds), from this call, to wait 
+	 * for all replies, or 0 to wait indefinitely
+	 */
+	public void connectAndSendAsync(final PeerInfo pd, final PeerMessage tosend,
+					ReplyListener replylistener, long timeout) {
+		final DeadlineListener listener = 
+			new DeadlineListener(new ScoringListener(pd, replylistener), timeout);
+		try {
+			ioExecutor.execute(new Runnable() {
+				public void run() {
+					long remaining = listener.remaining();
+					if (remaining < 0)
+						return;   // timed out while waiting for a thread
+					if (connpool == null) {
+						PeerConnection.exchange(pd, tosend, listener, remaining, 
+												timer, metrics);
+						return;
+					}
+					try {
+						connpool.send(pd, tosend, listener, remaining);
+					}
+					catch (IOException e) {
+						listener.replyFailed(e);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			listener.replyFailed(new IOException("Send rejected: " + e));
+		}
+	}
+	
+	
 	/**
 	 * Starts the loop which is the primary operation of the Node.
 	 * The main loop opens a server socket, listens for incoming connections,
 	 * and dispatches them to registered handlers appropriately.
+	 * Depending on the server mode the node was constructed with, 
+	 * connections are either handled by a thread each, or by the 
+	 * event loop of an NioServer.
 	 */
 	public void mainLoop() {
+		if (serverMode == NIO_SERVER) {
+			try {
+				new NioServer(this, myInfo.getPort()).run();
+			}
+			catch (IOException e) {
+				LoggerUtil.getLogger().severe("Stopping main loop (IOExc): " + e);
+			}
+			shutdown();
+			return;
+		}
+		
 		try {
 			ServerSocket s = makeServerSocket(myInfo.getPort());
 			s.setSoTimeout(SOCKETTIMEOUT);
@@ -293,10 +875,17 @@ public class Node {
 				LoggerUtil.getLogger().fine("Listening...");
 				try {
 					Socket clientsock = s.accept();
+					metrics.connectionsOpened.labels("in").inc();
 					clientsock.setSoTimeout(0);
 					
-					PeerHandler ph = new PeerHandler(clientsock);
-					ph.start();
+					try {
+						executor.execute(new PeerHandler(SocketFactory
+								.getSocketFactory().makeSocket(clientsock)));
+					}
+					catch (RejectedExecutionException e) {
+						LoggerUtil.getLogger().warning("Dropping connection: " + e);
+						clientsock.close();
+					}
 				}
 				catch (SocketTimeoutException e) {
 					LoggerUtil.getLogger().fine("" + e);
@@ -313,20 +902,224 @@ public class Node {
 			LoggerUtil.getLogger().severe("Stopping main loop (IOExc): " + e);
 		}
 		
-		shutdown = true;
+		shutdown();
 	}
 	
 	
 	/**
-	 * Starts a "stabilizer" function running at the specified
-	 * interval.
+	 * Handles a connection that has been accepted by other means than the
+	 * main loop, such as a simulated network: its messages are read and 
+	 * dispatched as a task of the executor, as for a connection accepted
+	 * by the blocking server.
+	 * 
+	 * @param s the connected socket
+	 */
+	public void handleConnection(SocketInterface s) {
+		metrics.connectionsOpened.labels("in").inc();
+		try {
+			executor.execute(new PeerHandler(s));
+		}
+		catch (RejectedExecutionException e) {
+			LoggerUtil.getLogger().warning("Dropping connection: " + e);
+			try {
+				s.close();
+			}
+			catch (IOException ex) {
+				LoggerUtil.getLogger().fine("Close error: " + ex);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Starts a "stabilizer" function running repeatedly, waiting the
+	 * specified delay after each run before starting the next, plus a 
+	 * random jitter of up to a tenth of the delay.
 	 * 
 	 * @param st the stabilizer function object
 	 * @param delay the delay (in milliseconds)
 	 */
 	public void startStabilizer(StabilizerInterface st, int delay) {
-		StabilizerRunner sr = new StabilizerRunner(st, delay);
-		sr.start();
+		startStabilizer(st, delay, FIXED_DELAY, delay / 10);
+	}
+	
+	
+	/**
+	 * Starts a "stabilizer" function running repeatedly. Each run is
+	 * carried out as a task of the node's executor; if a run is due while
+	 * the previous one is still in progress, it is skipped. The first run
+	 * starts at a random time within the first interval, and every run is
+	 * delayed by a further random jitter, so that nodes started together do
+	 * not all stabilize at the same moment. Stabilizers are stopped when 
+	 * the node is shut down.
+	 * 
+	 * @param st the stabilizer function object
+	 * @param delay the interval (in milliseconds) between runs
+	 * @param mode FIXED_RATE to start runs at a fixed interval, or 
+	 * FIXED_DELAY to wait the interval after each run finishes
+	 * @param jitter the maximum random delay (in milliseconds) added to
+	 * each run
+	 */
+	public void startStabilizer(StabilizerInterface st, int delay, int mode,
+								int jitter) {
+		StabilizerRunner runner = new StabilizerRunner(st, delay, mode, jitter);
+		StabilizerRunner old = stabilizers.put(st, runner);
+		if (old != null)
+			old.cancel();
+		runner.start();
+	}
+	
+	
+	/**
+	 * Stops a stabilizer started with startStabilizer. A run already in 
+	 * progress is allowed to finish.
+	 * 
+	 * @param st the stabilizer function object
+	 */
+	public void stopStabilizer(StabilizerInterface st) {
+		StabilizerRunner runner = stabilizers.remove(st);
+		if (runner != null)
+			runner.cancel();
+	}
+	
+	
+	/**
+	 * Shuts this node down: the main loop stops accepting connections
+	 * (within SOCKETTIMEOUT milliseconds), all stabilizers are stopped,
+	 * and the connection pool, if any, is closed.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		stopStabilizers();
+		if (connpool != null)
+			connpool.close();
+	}
+	
+	
+	private void stopStabilizers() {
+		for (StabilizerInterface st : stabilizers.keySet())
+			stopStabilizer(st);
+	}
+	
+	
+	/**
+	 * Sets the executor that runs all concurrent tasks of this node:
+	 * handling of incoming connections, stabilizers, and any tasks
+	 * submitted by applications through getExecutor(). By default, every 
+	 * task is run in a new thread. This should be called before the
+	 * main loop is started.
+	 * <p>
+	 * With BLOCKING_SERVER, a pooled connection from another node (see
+	 * ConnectionPool) is read by one task of this executor for as long as
+	 * the other node keeps it open, besides the tasks that handle its
+	 * requests. A BOUNDED_POOL must therefore have more threads than 
+	 * the number of pooled connections expected, or the node should use 
+	 * NIO_SERVER, whose I/O threads read all connections.
+	 * 
+	 * @param executor the executor to use
+	 */
+	public void setExecutor(TaskExecutor executor) {
+		this.executor = executor;
+	}
+	
+	
+	public TaskExecutor getExecutor() {
+		return executor;
+	}
+	
+	
+	/**
+	 * Sets the executor that runs the outgoing exchanges of this node
+	 * (see connectAndSendAsync). It is kept apart from the node's 
+	 * executor so that handlers and stabilizers waiting for replies can
+	 * never fill the threads the replies need; its tasks only wait for 
+	 * the network, each no longer than its timeout. By default, every 
+	 * exchange is run in a new thread.
+	 * 
+	 * @param executor the executor to use
+	 */
+	public void setIoExecutor(TaskExecutor executor) {
+		this.ioExecutor = executor;
+	}
+	
+	
+	public TaskExecutor getIoExecutor() {
+		return ioExecutor;
+	}
+	
+	
+	/**
+	 * Sets the scheduler that triggers the runs of stabilizers and the
+	 * timeouts of outgoing exchanges. By default this is a single thread
+	 * working by the system clock; a simulation may substitute one working
+	 * by a simulated clock. This should be called before any stabilizer
+	 * is started.
+	 * 
+	 * @param timer the scheduler to use
+	 */
+	public void setTimer(ScheduledExecutorService timer) {
+		this.timer = timer;
+		if (connpool != null)
+			connpool.setTimer(timer);
+	}
+	
+	
+	/**
+	 * Sets the clock by which this node and its components (stabilizers,
+	 * the connection pool, caches and indexes that expire entries, and
+	 * round-trip time measurements) tell the time. By default this is 
+	 * System.nanoTime; a simulation substitutes its simulated clock, 
+	 * along with the timer (see setTimer).
+	 * 
+	 * @param clock a source of the time in nanoseconds, of which only 
+	 * differences are meaningful
+	 */
+	public void setClock(LongSupplier clock) {
+		this.clock = clock;
+		if (connpool != null)
+			connpool.setClock(clock);
+	}
+	
+	
+	/**
+	 * @return the time in nanoseconds by the clock of this node (see 
+	 * setClock); only differences are meaningful
+	 */
+	public long nanoTime() {
+		return clock.getAsLong();
+	}
+	
+	
+	/**
+	 * @return the time in milliseconds by the clock of this node (see 
+	 * setClock); only differences are meaningful
+	 */
+	public long currentTimeMillis() {
+		return clock.getAsLong() / 1000000;
+	}
+	
+	
+	/**
+	 * Sets a pool of persistent connections to be used for all outgoing
+	 * messages sent by connectAndSend and sendToPeer, or null to open a
+	 * new connection for every message (the default). The pool schedules
+	 * its timeouts on the timer of this node, and tells the time by its
+	 * clock.
+	 * 
+	 * @param connpool the connection pool
+	 */
+	public void setConnectionPool(ConnectionPool connpool) {
+		this.connpool = connpool;
+		if (connpool != null) {
+			connpool.setMetrics(metrics);
+			connpool.setTimer(timer);
+			connpool.setClock(clock);
+		}
+	}
+	
+	
+	public ConnectionPool getConnectionPool() {
+		return connpool;
 	}
 	
 	
@@ -347,19 +1140,27 @@ public class Node {
 	
 	/**
 	 * Add new peer information to the peer list, indexed by the given
-	 * key.
+	 * key. The check against maxPeers and the insertion are atomic, so
+	 * concurrent calls never take the list over its limit.
 	 * @param key the key associated with the peer
 	 * @param pd the peer information
 	 * @return true if successful; false if maxPeers is reached, or if the
 	 * peer list already contains the given key.
 	 */
 	public boolean addPeer(String key, PeerInfo pd) {
-		if ((maxPeers == 0 || peers.size() < maxPeers) &&
-				!peers.containsKey(key)) {
-			peers.put(key, pd);
-			return true;
+		// reserve a slot first, then give it back if the key is present
+		int n;
+		do {
+			n = peerCount.get();
+			if (maxPeers > 0 && n >= maxPeers)
+				return false;
+		} while (!peerCount.compareAndSet(n, n + 1));
+		
+		if (peers.putIfAbsent(key, pd) != null) {
+			peerCount.decrementAndGet();
+			return false;
 		}
-		return false;
+		return true;
 	}
 	
 	
@@ -369,12 +1170,108 @@ public class Node {
 	
 	
 	public PeerInfo removePeer(String key) {
-		return peers.remove(key);
+		PeerInfo pd = peers.remove(key);
+		if (pd != null)
+			peerCount.decrementAndGet();
+		return pd;
 	}
 	
 	
+	/**
+	 * Adds a peer to the peer list as addPeer does, except that if the 
+	 * list is full, the peer takes the place of the neighbor with the 
+	 * highest cost (see PeerScores.cost), provided its own cost is lower 
+	 * by at least REPLACEMARGIN. Peers whose cost has not been measured
+	 * are neither admitted in place of others nor evicted for them, and 
+	 * the margin keeps peers of similar quality from replacing each other
+	 * back and forth.
+	 * 
+	 * @param pd the candidate peer
+	 * @return true if the peer was added
+	 */
+	public synchronized boolean offerPeer(PeerInfo pd) {
+		if (addPeer(pd))
+			return true;
+		if (!maxPeersReached() || peers.containsKey(pd.getId()))
+			return false;
+		double cost = scores.cost(pd.getId());
+		if (cost < 0)
+			return false;
+		
+		String worst = null;
+		double worstcost = -1;
+		for (String pid : peers.keySet()) {
+			double c = scores.cost(pid);
+			if (c > worstcost) {
+				worst = pid;
+				worstcost = c;
+			}
+		}
+		if (worst == null || cost > worstcost * (1 - REPLACEMARGIN))
+			return false;
+		
+		PeerInfo evicted = removePeer(worst);
+		LoggerUtil.getLogger().fine(String.format("Replacing %s (%.1f ms) with %s (%.1f ms)",
+				worst, worstcost, pd.getId(), cost));
+		if (addPeer(pd))
+			return true;
+		if (evicted != null)
+			addPeer(evicted);   // the slot was taken meanwhile
+		return false;
+	}
+	
+	
+	/**
+	 * Measures the round-trip time to a peer as the time taken to 
+	 * exchange a message with it: to connect, send the message, and read
+	 * the peer's replies until it closes the connection, which a peer with
+	 * no handler for the type does at once. The whole exchange must end
+	 * within the timeout, so a peer that accepts the connection but never
+	 * answers counts as unreachable. The ping stabilizers measure 
+	 * neighbors this way, and candidates for offerPeer should be measured
+	 * the same way, so that the costs compared are alike.
+	 * 
+	 * @param pd the peer
+	 * @param msgtype the type of the message sent, with no data
+	 * @param timeout the time (in milliseconds) the exchange may take
+	 * @return the round-trip time in milliseconds
+	 * @throws IOException if the peer could not be reached, or did not 
+	 * end the exchange within the timeout
+	 */
+	public double measureRtt(PeerInfo pd, String msgtype, int timeout) 
+	throws IOException {
+		ReplyCollector rc = new ReplyCollector();
+		long start = nanoTime();
+		PeerConnection.exchange(pd, new PeerMessage(msgtype, ""), rc, timeout, 
+								timer, metrics);
+		try {
+			rc.getFuture().get();
+		}
+		catch (ExecutionException e) {
+			throw (IOException)e.getCause();
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted measuring round-trip time");
+		}
+		return (nanoTime() - start) / 1e6;
+	}
+	
+	
+	/**
+	 * @return the quality measurements of the peers this node has 
+	 * exchanged messages with
+	 */
+	public PeerScores getPeerScores() {
+		return scores;
+	}
+	
+	
+	/**
+	 * @return a snapshot of the keys of the peer list, which may be 
+	 * iterated over safely while peers are added and removed
+	 */
 	public Set<String> getPeerKeys() {
-		return peers.keySet();
+		return new HashSet<String>(peers.keySet());
 	}
 	
 	
@@ -389,7 +1286,17 @@ public class Node {
 	
 	
 	public boolean maxPeersReached() {
-		return maxPeers > 0 && peers.size() == maxPeers;
+		return maxPeers > 0 && peerCount.get() >= maxPeers;
+	}
+	
+	
+	boolean isShutdown() {
+		return shutdown;
+	}
+	
+	
+	public int getServerMode() {
+		return serverMode;
 	}
 	
 	
@@ -26,9 +26,24 @@
 
 package peerbase;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 
+import peerbase.socket.BufferSocketInterface;
+import peerbase.socket.ChannelSocketInterface;
 import peerbase.socket.SocketFactory;
 import peerbase.socket.SocketInterface;
 
@@ -43,7 +58,11 @@ import peerbase.socket.SocketInterface;
 public class PeerConnection {
 
 	private PeerInfo pd;
-	private SocketInterface s;
+	private volatile SocketInterface s;
+	private volatile boolean sendFailed;
+	private volatile boolean acceptsBatches;
+	private volatile boolean detached;
+	private Metrics metrics;
 	
 	/**
 	 * Opens a new connection to the specified peer.
@@ -54,9 +73,51 @@ public class PeerConnection {
 	 */
 	public PeerConnection(PeerInfo info) 
 	throws IOException, UnknownHostException {
+		this(info, 0, Metrics.getRegistry());
+	}
+	
+	
+	/**
+	 * Opens a new connection to the specified peer, giving up if it cannot
+	 * be established within the given time.
+	 * 
+	 * @param info the peer node to connect to
+	 * @param timeout the connect timeout in milliseconds (0 means no timeout)
+	 * @throws IOException if an I/O error occurs, or the timeout expires
+	 * @throws UnknownHostException
+	 */
+	public PeerConnection(PeerInfo info, int timeout) 
+	throws IOException, UnknownHostException {
+		this(info, timeout, Metrics.getRegistry());
+	}
+	
+	
+	/**
+	 * Opens a new connection to the specified peer, counted in the given
+	 * registry of metrics.
+	 * 
+	 * @param info the peer node to connect to
+	 * @param timeout the connect timeout in milliseconds (0 means no timeout)
+	 * @param metrics the registry of the node opening the connection
+	 * @throws IOException if an I/O error occurs, or the timeout expires
+	 */
+	PeerConnection(PeerInfo info, int timeout, Metrics metrics) 
+	throws IOException {
 		pd = info;
-		s = SocketFactory.getSocketFactory().makeSocket(pd.getHost(), 
-														pd.getPort());
+		this.metrics = metrics;
+		try {
+			if (timeout > 0)
+				s = SocketFactory.getSocketFactory().makeSocket(pd.getHost(), 
+																pd.getPort(), timeout);
+			else
+				s = SocketFactory.getSocketFactory().makeSocket(pd.getHost(), 
+																pd.getPort());
+		}
+		catch (IOException e) {
+			metrics.connectionsFailed.inc();
+			throw e;
+		}
+		metrics.connectionsOpened.labels("out").inc();
 	}
 	
 	
@@ -68,32 +129,204 @@ public class PeerConnection {
 	 * @param socket
 	 */
 	public PeerConnection(PeerInfo info, SocketInterface socket) {
+		this(info, socket, Metrics.getRegistry());
+	}
+	
+	
+	/**
+	 * Constructs a connection for which a socket has already been
+	 * opened, counted in the given registry of metrics.
+	 * 
+	 * @param info
+	 * @param socket
+	 * @param metrics the registry of the node the connection belongs to
+	 */
+	PeerConnection(PeerInfo info, SocketInterface socket, Metrics metrics) {
 		pd = info;
 		s = socket;
+		this.metrics = metrics;
 	}
 	
 	
 	/**
-	 * Sends a PeerMessage to the connected peer.
+	 * Sends a PeerMessage to the connected peer. If the socket supports
+	 * it, the message header and data are written directly from the
+	 * message, without being packed into a new array.
 	 * @param msg the message object to send
 	 */
 	public void sendData(PeerMessage msg) {
+		sendData(msg, true);
+	}
+	
+	
+	/**
+	 * Sends a PeerMessage to the connected peer, optionally leaving it in
+	 * the buffer of the socket, to be sent along with the messages that 
+	 * follow it when one of them is sent with flush, flush() is called, or
+	 * the connection is closed. A handler sending several replies can send
+	 * them all this way, so that they go out together.
+	 * @param msg the message object to send
+	 * @param flush whether to send the message, and any before it, now
+	 */
+	public void sendData(PeerMessage msg, boolean flush) {
+		SocketInterface s = this.s;
+		if (s == null) {
+			LoggerUtil.getLogger().warning("Error sending message: closed");
+			sendFailed = true;
+			return;
+		}
+		try {
+			writeBuffers(s, msg.toBuffers(), flush, metrics);
+			metrics.messagesSent.labels(msg.getMsgType()).inc();
+		}
+		catch (IOException e) {
+			LoggerUtil.getLogger().warning("Error sending message: " + e);
+			sendFailed = true;
+		}
+	}
+	
+	
+	/**
+	 * Sends several messages to the connected peer as one BATCH frame 
+	 * (see MessageBatch), which the peer receives with one read and, with
+	 * recvBatch, as the separate messages. A single message is sent as it
+	 * is, and so are all of them, one after another and flushed together,
+	 * if the peer is not known to accept batches.
+	 * @param msgs the messages to send
+	 */
+	public void sendBatch(List<PeerMessage> msgs) {
+		if (msgs.size() == 1)
+			sendData(msgs.get(0));
+		else if (acceptsBatches && !msgs.isEmpty())
+			sendData(MessageBatch.pack(msgs));
+		else if (!msgs.isEmpty()) {
+			for (PeerMessage msg : msgs)
+				sendData(msg, false);
+			flush();
+		}
+	}
+	
+	
+	/**
+	 * Records whether the connected peer understands BATCH frames, and so
+	 * whether sendBatch may pack messages into one. This is set once the
+	 * peer has sent a batch on the connection; a handler may also set it
+	 * when the peer has asked for batched replies.
+	 * @param accepts whether the peer accepts batches
+	 */
+	public void setAcceptsBatches(boolean accepts) {
+		acceptsBatches = accepts;
+	}
+	
+	
+	/**
+	 * @return whether the connected peer is known to accept BATCH frames
+	 */
+	public boolean acceptsBatches() {
+		return acceptsBatches;
+	}
+	
+	
+	/**
+	 * Sends a PeerMessage whose data consists of the data of the given 
+	 * message followed by a region of a file. If the socket supports it,
+	 * the file region is transferred by the operating system directly from
+	 * the file to the network, without passing through memory; otherwise 
+	 * it is read into a buffer first.
+	 * @param msg the message type and the data preceding the file region
+	 * @param file the file to send from
+	 * @param position the position in the file of the region
+	 * @param count the length of the region
+	 */
+	public void sendData(PeerMessage msg, FileChannel file, long position, 
+						 int count) {
+		SocketInterface s = this.s;
+		if (s == null) {
+			LoggerUtil.getLogger().warning("Error sending message: closed");
+			sendFailed = true;
+			return;
+		}
+		try {
+			writeRegion(s, msg.toBuffers(count), file, position, count, metrics);
+			metrics.messagesSent.labels(msg.getMsgType()).inc();
+		}
+		catch (IOException e) {
+			LoggerUtil.getLogger().warning("Error sending message: " + e);
+			sendFailed = true;
+		}
+	}
+	
+	
+	/**
+	 * Sends any messages still held in the buffer of the socket.
+	 */
+	public void flush() {
+		SocketInterface s = this.s;
+		if (s == null)
+			return;
 		try {
-			s.write(msg.toBytes());
+			s.flush();
 		}
 		catch (IOException e) {
 			LoggerUtil.getLogger().warning("Error sending message: " + e);
+			sendFailed = true;
 		}
 	}
 	
 	
 	/**
-	 * Receives a PeerMessage from the connected peer.
+	 * Indicates whether sending a message on this connection has failed,
+	 * so that a handler sending a long series of replies can stop early.
+	 * @return true if any call to sendData has failed
+	 */
+	public boolean sendFailed() {
+		return sendFailed;
+	}
+	
+	
+	/**
+	 * Records that sending a message has failed, for subclasses that 
+	 * override sendData.
+	 */
+	protected void setSendFailed() {
+		sendFailed = true;
+	}
+	
+	
+	/**
+	 * Takes an incoming connection over from the server that passed it to
+	 * a handler. The server then leaves the connection open when the 
+	 * handler returns, and the handler must see that it is closed once it
+	 * has finished replying, from whatever thread that happens on.
+	 */
+	public void detach() {
+		detached = true;
+	}
+	
+	
+	/**
+	 * @return whether the handler of this connection has taken it over
+	 */
+	public boolean isDetached() {
+		return detached;
+	}
+	
+	
+	/**
+	 * Receives a PeerMessage from the connected peer. Messages received 
+	 * on a connection opened by this node are counted as replies in the
+	 * metrics; requests are counted when they are handled.
 	 * @return the message object received, or null if error
 	 */
 	public PeerMessage recvData() {
+		SocketInterface s = this.s;
+		if (s == null)
+			return null;
 		try {
 			PeerMessage msg = new PeerMessage(s);
+			metrics.bytesReceived.add(8 + msg.getMsgDataLength());
+			if (pd != null)
+				metrics.messagesReceived.labels(msg.getMsgType()).inc();
 			return msg;
 		}
 		catch (IOException e) {
@@ -101,7 +334,7 @@ public class PeerConnection {
 			// back from this connection.
 			if (!e.getMessage().equals("EOF in PeerMessage constructor: type"))
 				LoggerUtil.getLogger().warning("Error receiving message: " + e);
-			else
+			else if (LoggerUtil.getLogger().isLoggable(Level.FINEST))
 				LoggerUtil.getLogger().finest("Error receiving message: " + e);
 			return null;
 		}
@@ -109,16 +342,186 @@ public class PeerConnection {
 	
 	
 	/**
-	 * Closes the peer connection.
+	 * Receives the messages of the next frame from the connected peer:
+	 * the messages packed in it if it is a BATCH, or else the one message.
+	 * Unlike recvData, which returns a batch as it is, this lets a caller
+	 * treat replies alike however they were sent.
+	 * @return the messages received, or null if error
+	 */
+	public List<PeerMessage> recvBatch() {
+		PeerMessage msg = recvData();
+		if (msg == null)
+			return null;
+		if (!MessageBatch.isBatch(msg))
+			return Collections.singletonList(msg);
+		acceptsBatches = true;
+		try {
+			return MessageBatch.unpack(msg);
+		}
+		catch (IOException e) {
+			LoggerUtil.getLogger().warning("Error receiving message: " + e);
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Closes the peer connection, after sending any messages still held
+	 * in the buffer of the socket.
 	 */
 	public void close() {
+		SocketInterface s = this.s;
+		this.s = null;
 		if (s != null) {
+			metrics.connectionsClosed.inc();
 			try {
 				s.close();
 			} catch (IOException e) {
 				LoggerUtil.getLogger().warning("Error closing: " + e);
 			}
-			s = null;
+		}
+	}
+	
+	
+	/**
+	 * Writes the given buffers to the socket, with a single gathering 
+	 * write if the socket supports it, or else by copying them into one
+	 * array first, and optionally flushes the socket.
+	 * 
+	 * @param s the socket
+	 * @param bufs the buffers to write
+	 * @param flush whether to flush the socket afterwards
+	 * @param metrics the registry counting the bytes sent
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void writeBuffers(SocketInterface s, ByteBuffer[] bufs, 
+							 boolean flush, Metrics metrics) 
+	throws IOException {
+		int len = 0;
+		for (ByteBuffer b : bufs)
+			len += b.remaining();
+		metrics.bytesSent.add(len);
+		if (s instanceof BufferSocketInterface)
+			((BufferSocketInterface)s).write(bufs);
+		else {
+			ByteBuffer all = ByteBuffer.allocate(len);
+			for (ByteBuffer b : bufs)
+				all.put(b);
+			s.write(all.array(), 0, len);
+		}
+		if (flush)
+			s.flush();
+	}
+	
+	
+	/**
+	 * Writes the given buffers to the socket, followed by a region of a
+	 * file, sent with a direct transfer if the socket supports it. The 
+	 * socket is flushed.
+	 * 
+	 * @param s the socket
+	 * @param bufs the buffers to write
+	 * @param file the file to send from
+	 * @param position the position in the file of the region
+	 * @param count the length of the region
+	 * @param metrics the registry counting the bytes sent
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void writeRegion(SocketInterface s, ByteBuffer[] bufs, 
+							FileChannel file, long position, int count,
+							Metrics metrics) 
+	throws IOException {
+		if (s instanceof ChannelSocketInterface) {
+			ChannelSocketInterface cs = (ChannelSocketInterface)s;
+			writeBuffers(cs, bufs, false, metrics);
+			metrics.bytesSent.add(count);
+			cs.transferFrom(file, position, count);
+			return;
+		}
+		
+		ByteBuffer region = ByteBuffer.allocate(count);
+		while (region.hasRemaining()) {
+			if (file.read(region, position + region.position()) < 0)
+				throw new EOFException("File ended " + region.remaining() 
+									   + " bytes early");
+		}
+		region.flip();
+		ByteBuffer[] all = Arrays.copyOf(bufs, bufs.length + 1);
+		all[bufs.length] = region;
+		writeBuffers(s, all, true, metrics);
+	}
+	
+	
+	/**
+	 * Opens a new connection to the specified peer, sends a message and 
+	 * passes each reply to the given listener until the peer closes the
+	 * connection. If the timeout expires first, the connection is closed 
+	 * and the listener is notified of the failure; the timeout also bounds
+	 * the time taken to connect. The timeout is scheduled on the given 
+	 * timer before connecting, so it follows the timer's clock throughout.
+	 * This method blocks until the exchange is over.
+	 * 
+	 * @param pd the peer to send to
+	 * @param msg the message
+	 * @param listener the listener receiving the replies
+	 * @param timeout the time (in milliseconds) to wait for all replies,
+	 * or 0 to wait indefinitely
+	 * @param timer the executor used to schedule the timeout
+	 * @param metrics the registry counting the exchange
+	 */
+	static void exchange(PeerInfo pd, PeerMessage msg, 
+						 final ReplyListener listener, final long timeout,
+						 ScheduledExecutorService timer, Metrics metrics) {
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<PeerConnection> opened = 
+			new AtomicReference<PeerConnection>();
+		ScheduledFuture<?> expiry = null;
+		if (timeout > 0) {
+			expiry = timer.schedule(new Runnable() {
+				public void run() {
+					if (done.compareAndSet(false, true)) {
+						PeerConnection peerconn = opened.get();
+						if (peerconn != null)
+							peerconn.close();
+						listener.replyFailed(new SocketTimeoutException(
+								"No reply within " + timeout + " ms"));
+					}
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+		
+		PeerConnection peerconn;
+		try {
+			peerconn = new PeerConnection(pd, 
+					(int)Math.min(timeout, Integer.MAX_VALUE), metrics);
+		}
+		catch (IOException e) {
+			if (expiry != null)
+				expiry.cancel(false);
+			if (done.compareAndSet(false, true))
+				listener.replyFailed(e);
+			return;
+		}
+		opened.set(peerconn);
+		if (done.get()) {
+			// expired while connecting
+			peerconn.close();
+			return;
+		}
+		
+		peerconn.sendData(msg);
+		List<PeerMessage> replies = peerconn.recvBatch();
+		while (replies != null && !done.get()) {
+			for (PeerMessage reply : replies)
+				listener.replyReceived(reply);
+			replies = peerconn.recvBatch();
+		}
+		
+		if (expiry != null)
+			expiry.cancel(false);
+		if (done.compareAndSet(false, true)) {
+			peerconn.close();
+			listener.repliesComplete();
 		}
 	}
 	
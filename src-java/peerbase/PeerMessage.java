@@ -26,6 +26,7 @@
 package peerbase;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import peerbase.socket.SocketInterface;
 
@@ -34,6 +35,12 @@ import peerbase.socket.SocketInterface;
  * system. Also provides functionality for converting messages to/from
  * byte arrays in a portable manner. The type of every message is a 4-byte
  * value (i.e. 4-character string).
+ * <p>
+ * The message data is held in a ByteBuffer which is never copied by the 
+ * message itself: arrays and buffers passed to the constructors are 
+ * wrapped as they are, and must not be modified afterwards. The data can
+ * be sent without copying through toBuffers(), and examined without 
+ * copying through getMsgDataBuffer().
  * 
  * @author Nadeem Abdul Hamid
  *
@@ -41,16 +48,28 @@ import peerbase.socket.SocketInterface;
 public class PeerMessage {
 
 	private byte[] type;
-	private byte[] data;
+	private ByteBuffer data;   // position 0, limit = data length
 	
 	/**
-	 * Constructs a new PeerMessage object.
+	 * Constructs a new PeerMessage object. The arrays are not copied.
 	 * @param type the message type (4 bytes)
 	 * @param data the message data
 	 */
 	public PeerMessage(byte[] type, byte[] data) {
-		this.type = (byte[])type.clone();
-		this.data = (byte[])data.clone();
+		this.type = type;
+		this.data = ByteBuffer.wrap(data);
+	}
+	
+	
+	/**
+	 * Constructs a new PeerMessage object whose data is the remaining
+	 * content of the given buffer. The content is not copied.
+	 * @param type the message type (4 bytes)
+	 * @param data the message data
+	 */
+	public PeerMessage(byte[] type, ByteBuffer data) {
+		this.type = type;
+		this.data = data.slice();
 	}
 	
 	
@@ -74,26 +93,43 @@ public class PeerMessage {
 	}
 	
 	
+	/**
+	 * Constructs a new PeerMessage object whose data is the remaining
+	 * content of the given buffer. The content is not copied.
+	 * @param type the message type (4 characters)
+	 * @param data the message data
+	 */
+	public PeerMessage(String type, ByteBuffer data) {
+		this(type.getBytes(), data);
+	}
+	
+	
 	/**
 	 * Constructs a new PeerMessage object by reading data
-	 * from the given socket connection.
+	 * from the given socket connection. A message announcing more than
+	 * NioServer.MAXMESSAGE bytes of data is rejected before its data is
+	 * read.
 	 * @param s a socket connection object
-	 * @throws IOException if I/O error occurs
+	 * @throws IOException if I/O error occurs, or the length is out of
+	 * bounds
 	 */
 	public PeerMessage(SocketInterface s) throws IOException {
 		type = new byte[4];
 		byte[] thelen = new byte[4]; // for reading length of message data
-		if (s.read(type) != 4)
+		if (s.readFully(type, 0, 4) != 4)
 			throw new IOException("EOF in PeerMessage constructor: type");
-		if (s.read(thelen) != 4)
+		if (s.readFully(thelen, 0, 4) != 4)
 			throw new IOException("EOF in PeerMessage constructor: thelen");
 		
 		int len = byteArrayToInt(thelen);
-		data = new byte[len];
+		if (len < 0 || len > NioServer.MAXMESSAGE)
+			throw new IOException("Bad message data length " + len);
+		byte[] bytes = new byte[len];
 		
-		if (s.read(data) != len)
+		if (len > 0 && s.readFully(bytes, 0, len) != len)
 			throw new IOException("EOF in PeerMessage constructor: " +
 									"Unexpected message data length");
+		data = ByteBuffer.wrap(bytes);
 	}
 	
 	
@@ -120,16 +156,47 @@ public class PeerMessage {
 	 * @return the message data
 	 */
 	public String getMsgData() {
-		return new String(data);
+		if (data.hasArray())
+			return new String(data.array(), data.arrayOffset(), data.limit());
+		return new String(getMsgDataBytes());
 	}
 
 	
 	/**
-	 * Returns the message data.
+	 * Returns a copy of the message data.
 	 * @return the message data
 	 */
 	public byte[] getMsgDataBytes() {
-		return (byte[])data.clone();
+		byte[] bytes = new byte[data.limit()];
+		data.duplicate().get(bytes);
+		return bytes;
+	}
+	
+	
+	/**
+	 * Returns a read-only view of the message data, without copying it.
+	 * @return the message data
+	 */
+	public ByteBuffer getMsgDataBuffer() {
+		return data.asReadOnlyBuffer();
+	}
+	
+	
+	/*
+	 * Returns a view of the message data for use within the package,
+	 * where it is known not to be modified.
+	 */
+	ByteBuffer dataBuffer() {
+		return data.duplicate();
+	}
+	
+	
+	/**
+	 * Returns the length of the message data.
+	 * @return number of bytes of message data
+	 */
+	public int getMsgDataLength() {
+		return data.limit();
 	}
 
 	
@@ -139,14 +206,39 @@ public class PeerMessage {
 	 * @return byte array of message data
 	 */
 	public byte[] toBytes() {
-		byte[] bytes = new byte[4 + 4 + data.length];
-		byte[] lenbytes = intToByteArray(data.length);
-		
-		for (int i=0; i<4; i++) bytes[i] = type[i];
-		for (int i=0; i<4; i++) bytes[i+4] = lenbytes[i];
-		for (int i=0; i<data.length; i++) bytes[i+8] = data[i];
-		
-		return bytes;
+		ByteBuffer bytes = ByteBuffer.allocate(4 + 4 + data.limit());
+		bytes.put(type, 0, 4);
+		bytes.putInt(data.limit());
+		bytes.put(data.duplicate());
+		return bytes.array();
+	}
+	
+	
+	/**
+	 * Returns the packed representation of this message as two buffers,
+	 * suitable for a gathering write: an 8-byte header holding the type
+	 * and data length, and a view of the message data itself. The data 
+	 * is not copied, and must not be modified through the returned buffer.
+	 * @return header and data buffers
+	 */
+	public ByteBuffer[] toBuffers() {
+		return toBuffers(0);
+	}
+	
+	
+	/**
+	 * Returns the packed representation of this message as in toBuffers(),
+	 * except that the length in the header also counts the given number 
+	 * of bytes, which the caller sends immediately after the data.
+	 * @param extra the number of bytes to follow the message data
+	 * @return header and data buffers
+	 */
+	ByteBuffer[] toBuffers(int extra) {
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.put(type, 0, 4);
+		header.putInt(data.limit() + extra);
+		header.flip();
+		return new ByteBuffer[] { header, data.duplicate() };
 	}
 	
 	
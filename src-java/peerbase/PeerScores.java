@@ -0,0 +1,228 @@
+/*
+	File: PeerScores.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measurements of the quality of the peers a node communicates with:
+ * the round-trip time to each peer, the throughput of transfers from it,
+ * and the rate at which exchanges with it fail, each kept as an
+ * exponentially weighted moving average so that recent behavior counts
+ * the most. From these, cost() estimates the time a typical exchange
+ * with the peer takes, which Node.offerPeer uses to decide which
+ * neighbors to keep.
+ * <p>
+ * The node records the outcome of every exchange it makes; round-trip
+ * times are recorded by ping stabilizers, and throughputs by the 
+ * applications that transfer data. Only the most recently used peers
+ * are remembered.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class PeerScores {
+	
+	private static final int CAPACITY = 1024;     // peers remembered
+	private static final double GAIN = 0.125;     // weight of a new sample
+	private static final int REFERENCESIZE = 64 * 1024;  // bytes, for cost()
+	
+	private LinkedHashMap<String,Score> scores;   // in access order
+	
+	
+	public PeerScores() {
+		this.scores = new LinkedHashMap<String,Score>(16, 0.75f, true);
+	}
+	
+	
+	/**
+	 * Records a successful exchange that took the given round-trip time.
+	 * @param pid the id of the peer
+	 * @param ms the round-trip time in milliseconds
+	 */
+	public synchronized void recordRtt(String pid, double ms) {
+		Score s = get(pid);
+		s.rtt = s.rtt < 0 ? ms : (1 - GAIN) * s.rtt + GAIN * ms;
+		s.failureRate *= 1 - GAIN;
+	}
+	
+	
+	/**
+	 * Records a successful exchange.
+	 * @param pid the id of the peer
+	 */
+	public synchronized void recordSuccess(String pid) {
+		get(pid).failureRate *= 1 - GAIN;
+	}
+	
+	
+	/**
+	 * Records a failed exchange.
+	 * @param pid the id of the peer
+	 */
+	public synchronized void recordFailure(String pid) {
+		Score s = get(pid);
+		s.failureRate = (1 - GAIN) * s.failureRate + GAIN;
+	}
+	
+	
+	/**
+	 * Records a transfer of data from the peer.
+	 * @param pid the id of the peer
+	 * @param bytes the number of bytes transferred
+	 * @param nanos the time the transfer took, in nanoseconds
+	 */
+	public synchronized void recordTransfer(String pid, long bytes, long nanos) {
+		if (bytes <= 0 || nanos <= 0)
+			return;
+		Score s = get(pid);
+		double sample = bytes * 1e9 / nanos;
+		s.throughput = s.throughput < 0 ? sample 
+						: (1 - GAIN) * s.throughput + GAIN * sample;
+	}
+	
+	
+	/**
+	 * @param pid the id of a peer
+	 * @return the smoothed round-trip time to the peer in milliseconds,
+	 * or -1 if it has not been measured
+	 */
+	public synchronized double getRtt(String pid) {
+		Score s = scores.get(pid);
+		return s == null ? -1 : s.rtt;
+	}
+	
+	
+	/**
+	 * @param pid the id of a peer
+	 * @return the smoothed throughput of transfers from the peer in bytes
+	 * per second, or -1 if it has not been measured
+	 */
+	public synchronized double getThroughput(String pid) {
+		Score s = scores.get(pid);
+		return s == null ? -1 : s.throughput;
+	}
+	
+	
+	/**
+	 * @param pid the id of a peer
+	 * @return the smoothed fraction of exchanges with the peer that failed
+	 */
+	public synchronized double getFailureRate(String pid) {
+		Score s = scores.get(pid);
+		return s == null ? 0 : s.failureRate;
+	}
+	
+	
+	/**
+	 * Estimates the time (in milliseconds) it takes to complete a typical
+	 * exchange with the peer: a round trip, plus the transfer of 64 KB,
+	 * repeated until it succeeds. A peer whose throughput has not been
+	 * measured is assumed to have the median throughput of those that
+	 * have, so that a peer known only by its round-trip time compares 
+	 * fairly with one that has been transferred from. If no throughput
+	 * is known at all, the transfer is left out for every peer.
+	 * @param pid the id of a peer
+	 * @return the estimated cost, or -1 if the round-trip time to the
+	 * peer has not been measured
+	 */
+	public synchronized double cost(String pid) {
+		Score s = scores.get(pid);
+		if (s == null || s.rtt < 0)
+			return -1;
+		double ms = s.rtt;
+		double throughput = s.throughput > 0 ? s.throughput : medianThroughput();
+		if (throughput > 0)
+			ms += REFERENCESIZE * 1000.0 / throughput;
+		return ms / Math.max(0.05, 1 - s.failureRate);
+	}
+	
+	
+	/**
+	 * Forgets what is known about a peer.
+	 * @param pid the id of a peer
+	 */
+	public synchronized void remove(String pid) {
+		scores.remove(pid);
+	}
+	
+	
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder("PeerScores[");
+		for (Map.Entry<String,Score> e : scores.entrySet())
+			sb.append(String.format("%s: rtt=%.1f tput=%.0f fail=%.2f; ", e.getKey(),
+					e.getValue().rtt, e.getValue().throughput, e.getValue().failureRate));
+		return sb.append("]").toString();
+	}
+	
+	
+	/*
+	 * Returns the entry for the peer, creating it (and forgetting the 
+	 * least recently used peer if there is no room) if necessary. Must be
+	 * called while holding the lock.
+	 */
+	private Score get(String pid) {
+		Score s = scores.get(pid);
+		if (s == null) {
+			if (scores.size() >= CAPACITY) {
+				Iterator<String> it = scores.keySet().iterator();
+				it.next();
+				it.remove();
+			}
+			s = new Score();
+			scores.put(pid, s);
+		}
+		return s;
+	}
+	
+	
+	/*
+	 * Returns the median of the measured throughputs, or -1 if none has
+	 * been measured. Must be called while holding the lock.
+	 */
+	private double medianThroughput() {
+		double[] known = new double[scores.size()];
+		int n = 0;
+		for (Score s : scores.values())
+			if (s.throughput > 0)
+				known[n++] = s.throughput;
+		if (n == 0)
+			return -1;
+		Arrays.sort(known, 0, n);
+		return n % 2 == 1 ? known[n / 2] : (known[n / 2 - 1] + known[n / 2]) / 2;
+	}
+	
+	
+	private static class Score {
+		private double rtt = -1;          // milliseconds
+		private double throughput = -1;   // bytes per second
+		private double failureRate = 0;
+	}
+}
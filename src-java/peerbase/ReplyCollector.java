@@ -0,0 +1,75 @@
+/*
+	File: ReplyCollector.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+package peerbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A ReplyListener that gathers all replies to a message into a list,
+ * and completes a future with the list once the last reply has arrived.
+ * Events after the first completion or failure are ignored.
+ * 
+ * @author PeerBase contributors
+ */
+public class ReplyCollector implements ReplyListener {
+
+	private List<PeerMessage> replies;
+	private CompletableFuture<List<PeerMessage>> future;
+	
+	
+	public ReplyCollector() {
+		replies = new ArrayList<PeerMessage>();
+		future = new CompletableFuture<List<PeerMessage>>();
+	}
+	
+	
+	/**
+	 * @return a future completed with the list of replies, or completed
+	 * exceptionally with the IOException that ended the exchange
+	 */
+	public CompletableFuture<List<PeerMessage>> getFuture() {
+		return future;
+	}
+	
+	
+	public synchronized void replyReceived(PeerMessage msg) {
+		if (!future.isDone())
+			replies.add(msg);
+	}
+
+	
+	public synchronized void repliesComplete() {
+		future.complete(replies);
+	}
+
+	
+	public synchronized void replyFailed(IOException e) {
+		future.completeExceptionally(e);
+	}
+}
@@ -0,0 +1,60 @@
+/*
+	File: ReplyListener.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+package peerbase;
+
+import java.io.IOException;
+
+/**
+ * Interface for objects that receive the replies to a message sent
+ * asynchronously, one at a time, as they arrive from the peer. For
+ * every message sent, replyReceived is invoked once per reply, followed
+ * by exactly one call to either repliesComplete or replyFailed.
+ * Implementations should not block, since they may be invoked on a
+ * thread that is reading replies for other messages as well.
+ * 
+ * @author PeerBase contributors
+ *
+ **/
+public interface ReplyListener {
+	
+	/**
+	 * Invoked for each reply received.
+	 * @param msg the reply
+	 */
+	public void replyReceived(PeerMessage msg);
+	
+	/**
+	 * Invoked after the last reply has been received.
+	 */
+	public void repliesComplete();
+	
+	/**
+	 * Invoked if the message could not be sent, the connection failed,
+	 * or the replies did not arrive in time.
+	 * @param e the cause of the failure
+	 */
+	public void replyFailed(IOException e);
+}
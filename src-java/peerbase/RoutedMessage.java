@@ -0,0 +1,159 @@
+/*
+	File: RoutedMessage.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The envelope in which a message is carried to a peer that is not a
+ * direct neighbor. The envelope records the id of the final destination,
+ * the id of the peer that originally sent the message, and the number
+ * of further hops the message may take; each peer on the way passes it
+ * on to the next hop chosen by its router (see Node.sendToPeer). It is
+ * sent as a PeerMessage of type ROUTE, with data:
+ * <pre>
+ *   [hop limit (4)] [destination length (2)] [destination id]
+ *   [source length (2)] [source id] [message type (4)] [message data ...]
+ * </pre>
+ *
+ * @author PeerBase contributors
+ */
+public class RoutedMessage {
+
+	public static final String ROUTE = "ROUT";
+	
+	/** The hop limit given to messages sent by Node.sendToPeer. */
+	public static final int MAXHOPS = 16;
+
+	private String destination;
+	private String source;
+	private int hopLimit;
+	private PeerMessage message;
+
+
+	/**
+	 * @param destination the id of the final destination
+	 * @param source the id of the original sender
+	 * @param hopLimit the number of hops the message may still take
+	 * @param message the message carried
+	 */
+	public RoutedMessage(String destination, String source, int hopLimit,
+						 PeerMessage message) {
+		this.destination = destination;
+		this.source = source;
+		this.hopLimit = hopLimit;
+		this.message = message;
+	}
+
+
+	/**
+	 * Unpacks a routed message from a ROUTE PeerMessage. The data of the
+	 * message carried is shared with the envelope, not copied.
+	 *
+	 * @param envelope the ROUTE message
+	 * @return the routed message
+	 * @throws IOException if the envelope is malformed
+	 */
+	public static RoutedMessage fromPeerMessage(PeerMessage envelope) 
+	throws IOException {
+		ByteBuffer data = envelope.dataBuffer();
+		try {
+			int hops = data.getInt();
+			String dest = getString(data);
+			String src = getString(data);
+			byte[] type = new byte[4];
+			data.get(type);
+			return new RoutedMessage(dest, src, hops, new PeerMessage(type, data));
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Malformed routed message");
+		}
+	}
+
+
+	/**
+	 * @return the ROUTE PeerMessage carrying this routed message
+	 */
+	public PeerMessage toPeerMessage() {
+		byte[] dest = destination.getBytes(StandardCharsets.UTF_8);
+		byte[] src = source.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer inner = message.dataBuffer();
+		ByteBuffer data = ByteBuffer.allocate(4 + 2 + dest.length + 2 
+											  + src.length + 4 + inner.remaining());
+		data.putInt(hopLimit);
+		data.putShort((short)dest.length).put(dest);
+		data.putShort((short)src.length).put(src);
+		data.put(message.getMsgTypeBytes(), 0, 4).put(inner);
+		data.flip();
+		return new PeerMessage(ROUTE, data);
+	}
+
+
+	/**
+	 * @return this message as forwarded on to the next hop: the same, 
+	 * with one less hop remaining
+	 */
+	public RoutedMessage nextHop() {
+		return new RoutedMessage(destination, source, hopLimit - 1, message);
+	}
+
+
+	public String getDestination() {
+		return destination;
+	}
+
+
+	public String getSource() {
+		return source;
+	}
+
+
+	public int getHopLimit() {
+		return hopLimit;
+	}
+
+
+	public PeerMessage getMessage() {
+		return message;
+	}
+
+
+	public String toString() {
+		return "RoutedMessage[" + source + "->" + destination + " hops=" 
+				+ hopLimit + " " + message + "]";
+	}
+
+
+	private static String getString(ByteBuffer data) {
+		byte[] b = new byte[data.getShort() & 0xffff];
+		data.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,236 @@
+/*
+	File: TaskExecutor.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The execution layer of a Node. Every task the PeerBase system runs
+ * concurrently -- handling an incoming connection, processing a
+ * flooded query, running a stabilizer -- is submitted to the Node's
+ * TaskExecutor, which decides how it is actually run; outgoing 
+ * exchanges go to a second TaskExecutor of the node, its I/O executor.
+ * The modes are:
+ * <ul>
+ * <li>THREAD_PER_TASK: a new platform thread for every task (the
+ * original behavior of the system);</li>
+ * <li>VIRTUAL_THREAD_PER_TASK: a new virtual thread for every task,
+ * costing a few kilobytes instead of a full thread stack. If the Java
+ * runtime does not support virtual threads, this falls back to
+ * THREAD_PER_TASK;</li>
+ * <li>BOUNDED_POOL: a fixed number of platform threads with a bounded
+ * queue of waiting tasks. Tasks submitted when the queue is full are
+ * rejected with a RejectedExecutionException.</li>
+ * </ul>
+ *
+ * @author PeerBase contributors
+ */
+public class TaskExecutor implements Executor {
+
+	public static final int THREAD_PER_TASK = 0;
+	public static final int VIRTUAL_THREAD_PER_TASK = 1;
+	public static final int BOUNDED_POOL = 2;
+
+	private int mode;
+	private ExecutorService service;     // null for THREAD_PER_TASK
+	private ThreadFactory factory;       // null for the default threads
+	private ThreadPoolExecutor pool;     // non-null for BOUNDED_POOL only
+	private AtomicInteger active;
+	private AtomicLong rejected;
+
+
+	private TaskExecutor(int mode) {
+		this.mode = mode;
+		this.service = null;
+		this.factory = null;
+		this.pool = null;
+		this.active = new AtomicInteger(0);
+		this.rejected = new AtomicLong(0);
+	}
+
+
+	/**
+	 * Returns an executor that starts a new platform thread for every task.
+	 */
+	public static TaskExecutor newThreadPerTask() {
+		return new TaskExecutor(THREAD_PER_TASK);
+	}
+
+
+	/**
+	 * Returns an executor that starts a new thread for every task,
+	 * creating the threads with the given factory.
+	 *
+	 * @param factory the factory creating the threads
+	 */
+	public static TaskExecutor newThreadPerTask(ThreadFactory factory) {
+		TaskExecutor te = new TaskExecutor(THREAD_PER_TASK);
+		te.factory = factory;
+		return te;
+	}
+
+
+	/**
+	 * Returns an executor that starts a new virtual thread for every task,
+	 * or a new platform thread if virtual threads are not supported by
+	 * the running Java version.
+	 */
+	public static TaskExecutor newVirtualThreadPerTask() {
+		try {
+			Method m = java.util.concurrent.Executors.class.getMethod(
+								"newVirtualThreadPerTaskExecutor");
+			TaskExecutor te = new TaskExecutor(VIRTUAL_THREAD_PER_TASK);
+			te.service = (ExecutorService)m.invoke(null);
+			return te;
+		}
+		catch (Exception e) {
+			LoggerUtil.getLogger().warning("Virtual threads not available; " +
+					"using a thread per task: " + e);
+			return newThreadPerTask();
+		}
+	}
+
+
+	/**
+	 * Returns an executor running tasks on a fixed number of platform
+	 * threads.
+	 *
+	 * @param threads the number of threads in the pool
+	 * @param queuesize the maximum number of tasks waiting for a thread
+	 */
+	public static TaskExecutor newBoundedPool(int threads, int queuesize) {
+		final TaskExecutor te = new TaskExecutor(BOUNDED_POOL);
+		te.pool = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queuesize),
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+						te.rejected.incrementAndGet();
+						throw new RejectedExecutionException("Task queue full ("
+								+ e.getQueue().size() + " waiting)");
+					}
+				});
+		te.service = te.pool;
+		return te;
+	}
+
+
+	/**
+	 * Runs the given task concurrently, as determined by the mode of this
+	 * executor.
+	 *
+	 * @param task the task to run
+	 * @throws RejectedExecutionException if the task cannot be accepted
+	 */
+	public void execute(Runnable task) {
+		Runnable counted = new CountedTask(task);
+		if (service == null && factory != null)
+			factory.newThread(counted).start();
+		else if (service == null)
+			new Thread(counted).start();
+		else
+			service.execute(counted);
+	}
+
+
+	/**
+	 * Stops accepting new tasks. Tasks already running are allowed to
+	 * finish.
+	 */
+	public void shutdown() {
+		if (service != null)
+			service.shutdown();
+	}
+
+
+	public int getMode() {
+		return mode;
+	}
+
+
+	/**
+	 * @return the number of tasks currently running
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+
+	/**
+	 * @return the number of tasks waiting for a thread (always 0 except
+	 * for a bounded pool)
+	 */
+	public int getQueueDepth() {
+		return pool == null ? 0 : pool.getQueue().size();
+	}
+
+
+	/**
+	 * @return the total number of tasks rejected by this executor
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+
+	public String toString() {
+		return String.format("TaskExecutor[mode=%d active=%d queued=%d rejected=%d]",
+				mode, getActiveCount(), getQueueDepth(), getRejectedCount());
+	}
+
+
+	/*
+	 * Keeps track of the number of tasks running.
+	 */
+	private class CountedTask implements Runnable {
+		private Runnable task;
+
+		public CountedTask(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			active.incrementAndGet();
+			try {
+				task.run();
+			}
+			finally {
+				active.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/*
+	File: DownloadState.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.sample;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import peerbase.LoggerUtil;
+
+/**
+ * Records which byte ranges of a partially downloaded file have been
+ * received, in a small sidecar file next to it, so that an interrupted
+ * download can be resumed where it stopped -- even after the program
+ * is restarted -- instead of starting again from the first byte. The
+ * sidecar is a text file identifying the file by its size and, if the
+ * holders sent it, the CRC-32 checksum of its contents, followed by the
+ * completed ranges, one per line:
+ * <pre>
+ *   size 7300123 crc 1c291ca3
+ *   0 1048576
+ *   2097152 3145728
+ * </pre>
+ * A sidecar recorded for a different file -- one whose size or checksum
+ * has since changed -- is discarded, and the download starts again.
+ * The sidecar is rewritten (through a temporary file, so that it is 
+ * never left half written) every time a range is completed.
+ *
+ * @author PeerBase contributors
+ */
+public class DownloadState {
+
+	private File file;          // the sidecar, or null if not persisted
+	private long size;
+	private long crc;           // checksum of the whole file, or -1
+	private LinkedList<long[]> completed;   // sorted, disjoint, not adjacent
+
+
+	private DownloadState(File file, long size, long crc) {
+		this.file = file;
+		this.size = size;
+		this.crc = crc;
+		this.completed = new LinkedList<long[]>();
+	}
+
+
+	/**
+	 * Loads the state of a download, of a file known only by its size,
+	 * from the given sidecar file.
+	 *
+	 * @param file the sidecar file, or null to keep the state in memory only
+	 * @param size the size of the file being downloaded
+	 * @return the state of the download
+	 */
+	public static DownloadState load(File file, long size) {
+		return load(file, size, -1);
+	}
+
+
+	/**
+	 * Loads the state of a download from the given sidecar file. If the
+	 * sidecar does not exist, cannot be read, or records a file of a 
+	 * different size or checksum, the state returned has no ranges 
+	 * completed.
+	 *
+	 * @param file the sidecar file, or null to keep the state in memory only
+	 * @param size the size of the file being downloaded
+	 * @param crc the CRC-32 checksum of the whole file, or -1 if unknown
+	 * @return the state of the download
+	 */
+	public static DownloadState load(File file, long size, long crc) {
+		DownloadState state = new DownloadState(file, size, crc);
+		if (file == null || !file.exists())
+			return state;
+
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				String line = in.readLine();
+				if (line == null || !line.equals(state.identity())) {
+					LoggerUtil.getLogger().info("Discarding download state " 
+							+ file + ": file changed");
+					return state;
+				}
+				while ((line = in.readLine()) != null) {
+					String[] data = line.trim().split("\\s+");
+					state.add(Long.parseLong(data[0]), Long.parseLong(data[1]));
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			LoggerUtil.getLogger().warning("Discarding download state " + file 
+					+ ": " + e);
+			state.completed.clear();
+		}
+		catch (RuntimeException e) {
+			LoggerUtil.getLogger().warning("Discarding download state " + file 
+					+ ": " + e);
+			state.completed.clear();
+		}
+		return state;
+	}
+
+
+	/**
+	 * Records that the given range has been received (and is safely on
+	 * disk), and saves the state.
+	 *
+	 * @param start the start of the range
+	 * @param end the end of the range (exclusive)
+	 * @throws IOException if the sidecar file cannot be written
+	 */
+	public synchronized void markComplete(long start, long end) 
+	throws IOException {
+		if (start >= end)
+			return;
+		add(start, end);
+		save();
+	}
+
+
+	/**
+	 * @return the ranges, as [start, end) pairs in order, that have not 
+	 * been received yet
+	 */
+	public synchronized List<long[]> getMissing() {
+		List<long[]> missing = new ArrayList<long[]>();
+		long pos = 0;
+		for (long[] range : completed) {
+			if (range[0] > pos)
+				missing.add(new long[] { pos, range[0] });
+			pos = range[1];
+		}
+		if (pos < size)
+			missing.add(new long[] { pos, size });
+		return missing;
+	}
+
+
+	/**
+	 * @return the number of bytes received so far
+	 */
+	public synchronized long getCompleted() {
+		long total = 0;
+		for (long[] range : completed)
+			total += range[1] - range[0];
+		return total;
+	}
+
+
+	/**
+	 * Deletes the sidecar file, once the download is complete.
+	 */
+	public void delete() {
+		if (file != null)
+			file.delete();
+	}
+
+
+	/*
+	 * Merges a range into the list of completed ranges.
+	 */
+	private void add(long start, long end) {
+		if (start < 0 || end > size || start > end)
+			throw new IllegalArgumentException("Bad range " + start + "-" + end);
+		Iterator<long[]> it = completed.iterator();
+		int index = 0;
+		while (it.hasNext()) {
+			long[] range = it.next();
+			if (range[1] < start) {
+				index++;
+				continue;
+			}
+			if (range[0] > end)
+				break;
+			// overlapping or adjacent: absorb it
+			start = Math.min(start, range[0]);
+			end = Math.max(end, range[1]);
+			it.remove();
+		}
+		completed.add(index, new long[] { start, end });
+	}
+
+
+	/*
+	 * Returns the first line of the sidecar, identifying the file.
+	 */
+	private String identity() {
+		return crc < 0 ? "size " + size : String.format("size %d crc %08x", size, crc);
+	}
+
+
+	private void save() throws IOException {
+		if (file == null)
+			return;
+		File tmp = new File(file.getPath() + ".tmp");
+		PrintWriter out = new PrintWriter(new FileWriter(tmp));
+		try {
+			out.println(identity());
+			for (long[] range : completed)
+				out.println(range[0] + " " + range[1]);
+		}
+		finally {
+			out.close();
+		}
+		if (out.checkError())
+			throw new IOException("Error writing " + tmp);
+		Files.move(tmp.toPath(), file.toPath(), 
+				   StandardCopyOption.REPLACE_EXISTING, 
+				   StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,238 @@
+/*
+	File: FileChunkWriter.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.sample;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+import peerbase.PeerMessage;
+import peerbase.ReplyListener;
+
+/**
+ * Receives the replies to an FSTR (file stream) request and writes each
+ * chunk of the file to disk as soon as it arrives, so that the memory
+ * used does not depend on the size of the file. The replies consist of
+ * a header giving the size of the file and the CRC-32 checksum of the
+ * whole file (in hex; older peers leave it out), followed by FCHK 
+ * messages each carrying the offset of the chunk in the file, a CRC-32
+ * checksum of the chunk, and the chunk itself:
+ * <pre>
+ *   REPL "file-size chunk-size file-crc32"
+ *   FCHK [offset (8)] [crc32 (4)] [bytes ...]
+ *   ...
+ * </pre>
+ * The request may be for the whole file or for a range of it. Chunks
+ * are sent in order, so if the transfer fails, getPosition() tells
+ * where to resume it. If the checksum of the file expected is given,
+ * a reply announcing a different one fails the transfer before any
+ * chunk is written.
+ *
+ * @author PeerBase contributors
+ */
+public class FileChunkWriter implements ReplyListener {
+
+	private RandomAccessFile out;
+	private long size;        // -1 until the header has been received
+	private long fileCrc;     // -1 if not (yet) known
+	private long expectedCrc; // -1 if any file is accepted
+	private long end;         // end of the requested range, or -1 for end of file
+	private volatile long position;   // offset of the next chunk expected
+	private IOException error;
+	private CompletableFuture<Long> done;
+
+
+	/**
+	 * @param out the file to write chunks to, at their offsets
+	 */
+	public FileChunkWriter(RandomAccessFile out) {
+		this(out, 0, -1);
+	}
+
+
+	/**
+	 * @param out the file to write chunks to, at their offsets
+	 * @param offset the start of the range requested
+	 * @param length the length of the range requested, or -1 for the
+	 * rest of the file
+	 */
+	public FileChunkWriter(RandomAccessFile out, long offset, long length) {
+		this.out = out;
+		this.size = -1;
+		this.fileCrc = -1;
+		this.expectedCrc = -1;
+		this.end = length < 0 ? -1 : offset + length;
+		this.position = offset;
+		this.error = null;
+		this.done = new CompletableFuture<Long>();
+	}
+
+
+	/**
+	 * @return a future completed with the size of the file once every
+	 * chunk has been written, or completed exceptionally if the transfer
+	 * failed or a chunk was corrupted
+	 */
+	public CompletableFuture<Long> getFuture() {
+		return done;
+	}
+
+
+	/**
+	 * @return the size of the file, or -1 if the header has not been received
+	 */
+	public long getSize() {
+		return size;
+	}
+
+
+	/**
+	 * @return the CRC-32 checksum of the whole file, or -1 if the header
+	 * has not been received or the peer did not send one
+	 */
+	public long getFileCrc() {
+		return fileCrc;
+	}
+
+
+	/**
+	 * Sets the CRC-32 checksum of the whole file that the chunks must
+	 * come from. Must be called before the exchange is started.
+	 * @param crc the checksum, or -1 to accept any file
+	 */
+	public void setExpectedCrc(long crc) {
+		this.expectedCrc = crc;
+	}
+
+
+	/**
+	 * @return the offset in the file up to which chunks have been written
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+
+	public void replyReceived(PeerMessage msg) {
+		if (error != null)
+			return;
+		String type = msg.getMsgType();
+		try {
+			if (type.equals(FileShareNode.FILECHUNK)) {
+				ByteBuffer chunk = msg.getMsgDataBuffer();
+				long offset = chunk.getLong();
+				int crc = chunk.getInt();
+				writeChunk(offset, crc, chunk);
+			}
+			else if (type.equals(FileShareNode.REPLY) && size < 0) {
+				String[] header = msg.getMsgData().trim().split("\\s+");
+				if (header.length > 2)
+					fileCrc = Long.parseLong(header[2], 16);
+				if (expectedCrc >= 0 && fileCrc >= 0 && fileCrc != expectedCrc)
+					throw new FileChangedException(expectedCrc, fileCrc);
+				size = Long.parseLong(header[0]);
+				if (end < 0 || end > size)
+					end = size;
+			}
+			else {
+				error = new IOException("Transfer refused: " + msg.getMsgData());
+			}
+		}
+		catch (IOException e) {
+			error = e;
+		}
+		catch (RuntimeException e) {
+			error = new IOException("Malformed reply " + msg + ": " + e);
+		}
+	}
+
+
+	public void repliesComplete() {
+		if (error == null && size < 0)
+			error = new NoHeaderException();
+		else if (error == null && position != end)
+			error = new IOException("Transfer incomplete: stopped at " 
+									+ position + " of " + end);
+		if (error != null)
+			done.completeExceptionally(error);
+		else
+			done.complete(size);
+	}
+
+
+	public void replyFailed(IOException e) {
+		done.completeExceptionally(error != null ? error : e);
+	}
+
+
+	/*
+	 * Verifies a chunk against its checksum and writes it at its offset.
+	 */
+	private void writeChunk(long offset, int crc, ByteBuffer chunk)
+	throws IOException {
+		int n = chunk.remaining();
+		CRC32 check = new CRC32();
+		check.update(chunk.duplicate());
+		if ((int)check.getValue() != crc)
+			throw new IOException("Checksum mismatch in chunk at " + offset);
+		if (offset != position)
+			throw new IOException("Chunk at " + offset + " out of order");
+		if (size < 0 || offset + n > end)
+			throw new IOException("Chunk at " + offset + " beyond end of range");
+
+		long pos = offset;
+		synchronized (out) {
+			while (chunk.hasRemaining())
+				pos += out.getChannel().write(chunk, pos);
+		}
+		position += n;
+	}
+
+
+	/**
+	 * Signals that the peer sent no reply at all, as happens when it
+	 * does not support streaming transfers.
+	 */
+	@SuppressWarnings("serial")
+	public static class NoHeaderException extends IOException {
+		public NoHeaderException() { super("No file stream header received"); }
+	}
+
+
+	/**
+	 * Signals that the peer's copy of the file is not the one expected.
+	 */
+	@SuppressWarnings("serial")
+	public static class FileChangedException extends IOException {
+		public FileChangedException(long expected, long actual) { 
+			super(String.format("File checksum %08x, expected %08x", 
+								actual, expected)); 
+		}
+	}
+}
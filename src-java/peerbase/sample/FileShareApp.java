@@ -35,7 +35,7 @@ import java.util.logging.Level;
 import javax.swing.*;
 
 import peerbase.*;
-import peerbase.util.SimplePingStabilizer;
+import peerbase.util.ParallelPingStabilizer;
 
 
 /**
@@ -106,7 +106,7 @@ public class FileShareApp extends JFrame
 		 */
 		new javax.swing.Timer(3000, new RefreshListener()).start();
 
-		peer.startStabilizer(new SimplePingStabilizer(peer), 3000);
+		peer.startStabilizer(new ParallelPingStabilizer(peer), 3000);
 	}
 
 	
@@ -186,9 +186,12 @@ public class FileShareApp extends JFrame
 	private void updateFileList() {
 		filesModel.removeAllElements();
 		for (String filename : peer.getFileNames()) {
-			String pid = peer.getFileOwner(filename);
+			List<String> owners = peer.getFileOwners(filename);
+			String pid = owners.get(0);
 			if (pid.equals(peer.getId()))
 				filesModel.addElement(filename + ":(local)");
+			else if (owners.size() > 1)
+				filesModel.addElement(filename + ":" + pid + " +" + (owners.size() - 1));
 			else
 				filesModel.addElement(filename + ":" + pid);
 		}
@@ -208,25 +211,21 @@ public class FileShareApp extends JFrame
 			if(filesList.getSelectedValue() != null)
 			{
 				String selected = filesList.getSelectedValue().toString();
-				String filename = selected.substring(0, selected.indexOf(':'));
-				String pid = peer.getFileOwner(filename);
-				String[] ownerData = pid.split(":");
-				String host = ownerData[0];
-				int port = Integer.parseInt(ownerData[1]);
-				LoggerUtil.getLogger().fine("Fetching " + filename + " from " + host + ":" + port);
-				PeerInfo pd = new PeerInfo(host, port);
-				List<PeerMessage> resplist = peer.connectAndSend(pd, FileShareNode.FILEGET, filename, true);
-				LoggerUtil.getLogger().fine("FETCH RESPONSE TYPE: " + resplist.get(0).getMsgType());
-				if (resplist.size() > 0 && resplist.get(0).getMsgType().equals(FileShareNode.REPLY)) {
-					try {
-						FileOutputStream outfile = new FileOutputStream(filename);
-						outfile.write(resplist.get(0).getMsgDataBytes());
-						outfile.close();
-						peer.addLocalFile(filename);
-					} catch (IOException ex) {
-						LoggerUtil.getLogger().warning("Fetch error: " + ex);
+				final String filename = selected.substring(0, selected.indexOf(':'));
+				LoggerUtil.getLogger().fine("Fetching " + filename + " from " 
+						+ peer.getFileOwners(filename));
+				// transfer in the background; the file list is refreshed by timer
+				peer.getExecutor().execute(new Runnable() {
+					public void run() {
+						try {
+							long size = peer.fetchFile(filename);
+							LoggerUtil.getLogger().fine("Fetched " + filename 
+									+ " (" + size + " bytes)");
+						} catch (IOException ex) {
+							LoggerUtil.getLogger().warning("Fetch error: " + ex);
+						}
 					}
-				}
+				});
 
 			}
 		}
@@ -247,11 +246,8 @@ public class FileShareApp extends JFrame
 	class SearchListener implements ActionListener {
 		public void actionPerformed(ActionEvent e) {
 			String key = searchTextField.getText().trim();
-			for (String pid : peer.getPeerKeys()) {
-				peer.sendToPeer(pid, FileShareNode.QUERY,
-						peer.getId() + " " + key + " 4",
-						true);
-			}
+			// don't hold up the event thread waiting for acknowledgements
+			peer.search(key, 4);
 
 			searchTextField.requestFocusInWindow();
 			searchTextField.setText("");
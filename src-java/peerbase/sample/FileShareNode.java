@@ -27,12 +27,37 @@
 package peerbase.sample;
 
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
 
 import peerbase.*;
+import peerbase.util.DhtIndex;
+import peerbase.util.KademliaRouter;
+import peerbase.util.SeenCache;
+import peerbase.util.TrigramIndex;
 
 /**
  * The backend implementation of a simple peer-to-peer file sharing
@@ -48,32 +73,70 @@ public class FileShareNode extends Node {
 	public static final String INSERTPEER = "JOIN";
 	public static final String LISTPEER = "LIST";
 	public static final String PEERNAME = "NAME";
+	public static final String NAMEJOIN = "NJON";
 	public static final String QUERY = "QUER";
 	public static final String QRESPONSE = "RESP";
 	public static final String FILEGET = "FGET";
+	public static final String FILESTREAM = "FSTR";
+	public static final String FILECHUNK = "FCHK";
 	public static final String PEERQUIT = "QUIT";
 	
 	public static final String REPLY = "REPL";
 	public static final String ERROR = "ERRO";
+	
+	private static final int QUERYTIMEOUT = 5000;  // milliseconds
+	private static final int MAXRESULTS = 64;      // files reported per node
+	private static final int SEENQUERIES = 10000;  // query ids remembered
+	private static final long SEENEXPIRY = 120000; // milliseconds
+	private static final int CHUNKSIZE = 64 * 1024;  // bytes per FCHK message
+	private static final long MAPWINDOW = 64L << 20;  // bytes of file mapped at once
+	private static final int MAXKEYWORDS = 8;     // keywords published per file
+	private static final int DHTINTERVAL = 60000;  // milliseconds between index runs
+	private static final int BUILDPARALLELISM = 16;  // peers contacted at once
+	private static final int BUILDTIMEOUT = 5000;    // milliseconds
 
 	
 	/* CLASS MEMBERS */
-	// mapping from filenames to peer-ids
-	private Hashtable<String,String> files;
+	// mapping from filenames to the ids of all peers known to hold them,
+	// this node first if the file is local; the lists are never modified,
+	// only replaced
+	private Hashtable<String,List<String>> files;
+	// substring index of the keys of files
+	private TrigramIndex fileIndex;
+	// ids of the queries recently processed by this node
+	private SeenCache seenQueries;
+	private Random random;
+	// the distributed file index, or null if files are found by flooding
+	private volatile DhtIndex dht;
+	// checksums of whole shared files: filename -> { size, mtime, crc32 }
+	private Hashtable<String,long[]> checksums;
 	
 	
 	public FileShareNode(int maxPeers, PeerInfo myInfo) {
-		super(maxPeers, myInfo);
-		files = new Hashtable<String,String>();
+		this(maxPeers, myInfo, BLOCKING_SERVER);
+	}
+	
+	
+	public FileShareNode(int maxPeers, PeerInfo myInfo, int serverMode) {
+		super(maxPeers, myInfo, serverMode);
+		files = new Hashtable<String,List<String>>();
+		checksums = new Hashtable<String,long[]>();
+		fileIndex = new TrigramIndex();
+		seenQueries = new SeenCache(SEENQUERIES, SEENEXPIRY, new LongSupplier() {
+			public long getAsLong() { return currentTimeMillis(); }
+		});
+		random = new Random();
 		
 		this.addRouter(new Router(this));
 		
 		this.addHandler(INSERTPEER, new JoinHandler(this));
 		this.addHandler(LISTPEER, new ListHandler(this));
 		this.addHandler(PEERNAME, new NameHandler(this));
+		this.addHandler(NAMEJOIN, new NameJoinHandler(this));
 		this.addHandler(QUERY, new QueryHandler(this));
 		this.addHandler(QRESPONSE, new QResponseHandler(this));
 		this.addHandler(FILEGET, new FileGetHandler(this));
+		this.addHandler(FILESTREAM, new FileStreamHandler(this));
 		this.addHandler(PEERQUIT, new QuitHandler(this));
 	}
 	
@@ -83,10 +146,108 @@ public class FileShareNode extends Node {
 	 * @param filename the name of the file
 	 */
 	public void addLocalFile(String filename) {
-		// delete existing entry for filename (that may be non-local)
-		if (files.containsKey(filename))
-			files.remove(filename);
-		files.put(filename, getId());
+		if (addFileOwner(filename, getId()) && dht != null)
+			publish(filename);
+	}
+	
+	
+	/**
+	 * Switches the location of files from flooding queries to a
+	 * distributed index stored on the peers of a Kademlia overlay. Every
+	 * local file, present or added later, is published in the index
+	 * under its name and under each keyword of its name; search() then
+	 * looks up keywords in the index instead of flooding, and fetchFile()
+	 * looks up the holders of files it does not know of. Either costs
+	 * O(log N) messages in a network of N peers, wherever the files are.
+	 * The router must be bootstrapped and started as a stabilizer by the
+	 * caller; it need not be the router of this node.
+	 * 
+	 * @param kad the Kademlia router of this node
+	 */
+	public void enableDht(KademliaRouter kad) {
+		dht = new DhtIndex(this, kad);
+		startStabilizer(dht, DHTINTERVAL);
+		for (String filename : getFileNames())
+			if (getId().equals(getFileOwner(filename)))
+				publish(filename);
+	}
+	
+	
+	/*
+	 * Publishes a local file in the distributed index, in the background:
+	 * "file:name" maps to the ids of the file's holders, and "kw:keyword"
+	 * to lines "pid name" for the files whose names contain the keyword.
+	 */
+	private void publish(final String filename) {
+		try {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					dht.put("file:" + filename, getId());
+					for (String kw : keywords(filename))
+						dht.put("kw:" + kw, getId() + " " + filename);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			LoggerUtil.getLogger().warning("Not publishing " + filename + ": " + e);
+		}
+	}
+	
+	
+	/**
+	 * Looks up the holders of a file in the distributed index, and adds
+	 * them to the file table. This method blocks until the lookup is 
+	 * complete, and does nothing unless enableDht() has been called.
+	 * 
+	 * @param filename the name of the file
+	 * @return the ids of all peers known to hold the file
+	 */
+	public List<String> locate(String filename) {
+		if (dht != null)
+			for (String pid : dht.get("file:" + filename))
+				addFileOwner(filename, pid);
+		return getFileOwners(filename);
+	}
+	
+	
+	/*
+	 * Returns the distinct keywords of a file name or search key: its 
+	 * alphanumeric words of two or more characters, in lower case.
+	 */
+	private static Set<String> keywords(String s) {
+		Set<String> kws = new LinkedHashSet<String>();
+		for (String w : s.toLowerCase().split("[^\\p{Alnum}]+"))
+			if (w.length() >= 2 && kws.size() < MAXKEYWORDS)
+				kws.add(w);
+		return kws;
+	}
+	
+	
+	/**
+	 * Records that the specified peer holds a copy of the file.
+	 * @param filename the name of the file
+	 * @param pid the id of the peer
+	 * @return false if the peer was already known to hold the file
+	 */
+	public boolean addFileOwner(String filename, String pid) {
+		synchronized (files) {
+			List<String> owners = files.get(filename);
+			if (owners != null && owners.contains(pid))
+				return false;
+			
+			List<String> updated = new ArrayList<String>();
+			if (owners != null)
+				updated.addAll(owners);
+			// keep the local copy, if any, at the front
+			if (pid.equals(getId()))
+				updated.add(0, pid);
+			else
+				updated.add(pid);
+			files.put(filename, Collections.unmodifiableList(updated));
+			if (owners == null)
+				fileIndex.add(filename);
+			return true;
+		}
 	}
 	
 	
@@ -95,44 +256,395 @@ public class FileShareNode extends Node {
 	}
 	
 	
+	/**
+	 * @param filename the name of the file
+	 * @return the id of a peer holding the file (this node, if the file
+	 * is local), or null if the file is unknown
+	 */
 	public String getFileOwner(String filename) {
-		return files.get(filename);
+		List<String> owners = files.get(filename);
+		return owners == null ? null : owners.get(0);
+	}
+	
+	
+	/**
+	 * @param filename the name of the file
+	 * @return the ids of all peers known to hold the file, this node first
+	 * if the file is local
+	 */
+	public List<String> getFileOwners(String filename) {
+		List<String> owners = files.get(filename);
+		return owners == null ? Collections.<String>emptyList() : owners;
 	}
 	
 
-	public void buildPeers(String host, int port, int hops) {
-		LoggerUtil.getLogger().fine("build peers");
+	/**
+	 * Fetches a file from the peers known to hold it, as by
+	 * fetchFile(holders, filename). If none is known and the distributed
+	 * index is enabled, the holders are looked up in it first.
+	 * 
+	 * @param filename the name of the file
+	 * @return the size of the file fetched
+	 * @throws IOException if the transfer failed
+	 */
+	public long fetchFile(String filename) throws IOException {
+		List<String> owners = getFileOwners(filename);
+		if (owners.isEmpty())
+			owners = locate(filename);
+		List<PeerInfo> holders = new ArrayList<PeerInfo>();
+		for (String pid : owners)
+			if (!pid.equals(getId()))
+				holders.add(toPeerInfo(pid));
+		if (holders.size() == 0)
+			throw new IOException("No remote holder of " + filename);
+		return fetchFile(holders, filename);
+	}
+	
+	
+	/**
+	 * Fetches a file from the given peer, as by fetchFile(holders, filename).
+	 * 
+	 * @param pd the peer holding the file
+	 * @param filename the name of the file
+	 * @return the size of the file fetched
+	 * @throws IOException if the transfer failed
+	 */
+	public long fetchFile(PeerInfo pd, String filename) throws IOException {
+		return fetchFile(Collections.singletonList(pd), filename);
+	}
+	
+	
+	/**
+	 * Fetches a file from the given peers and saves it under the same name
+	 * in the working directory, registering it as a local file. The file
+	 * is transferred as streams of chunks, each written to disk as it
+	 * arrives, so that files of any size can be fetched in constant memory;
+	 * with several peers, a SwarmDownloader fetches different ranges from
+	 * each of them at once. 
+	 * <p>
+	 * Until the transfer is complete, the file is kept as "name.part",
+	 * with the ranges received recorded in "name.part.state". If the 
+	 * transfer fails, a later call resumes it from where it stopped. 
+	 * Peers that do not support streaming are sent a plain FGET instead.
+	 * This method blocks until the transfer is complete.
+	 * 
+	 * @param holders the peers holding the file
+	 * @param filename the name of the file
+	 * @return the size of the file fetched
+	 * @throws IOException if the transfer failed
+	 */
+	public long fetchFile(List<PeerInfo> holders, String filename) 
+	throws IOException {
+		File part = new File(filename + ".part");
+		File state = new File(filename + ".part.state");
+		if (!state.exists())
+			part.delete();  // nothing is known about its contents
+		
+		long size;
+		RandomAccessFile out = new RandomAccessFile(part, "rw");
+		try {
+			SwarmDownloader swarm = new SwarmDownloader(this, filename, holders);
+			try {
+				size = swarm.download(out, state);
+				LoggerUtil.getLogger().fine("Downloaded: " + swarm);
+			}
+			catch (FileChunkWriter.NoHeaderException e) {
+				PeerInfo pd = holders.get(holders.size() - 1);
+				LoggerUtil.getLogger().fine("Streaming unsupported by " + pd);
+				List<PeerMessage> resplist = connectAndSend(pd, FILEGET, 
+															filename, true);
+				if (resplist.size() == 0 
+						|| !resplist.get(0).getMsgType().equals(REPLY))
+					throw new IOException("Fetch failed: " + resplist);
+				out.setLength(0);
+				out.getChannel().write(resplist.get(0).getMsgDataBuffer());
+				size = out.length();
+			}
+		}
+		finally {
+			out.close();
+		}
 		
-		if (this.maxPeersReached() || hops <= 0)
+		completeFetch(part, filename);
+		state.delete();
+		return size;
+	}
+	
+	
+	/*
+	 * Moves a completely received file into place.
+	 */
+	private void completeFetch(File part, String filename) throws IOException {
+		Files.move(part.toPath(), new File(filename).toPath(), 
+				   StandardCopyOption.REPLACE_EXISTING);
+		addLocalFile(filename);
+	}
+	
+	
+	/*
+	 * Parses the optional range arguments of an FGET or FSTR message,
+	 * returning {offset, length}, or null if they are malformed. Without
+	 * arguments, the range is the whole file.
+	 */
+	private static long[] parseRange(String[] data) {
+		if (data.length == 1)
+			return new long[] { 0, Long.MAX_VALUE };
+		if (data.length != 3)
+			return null;
+		try {
+			long offset = Long.parseLong(data[1]);
+			long length = Long.parseLong(data[2]);
+			if (offset < 0 || length < 0)
+				return null;
+			return new long[] { offset, length };
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	
+	/*
+	 * Converts a peer id of the form host:port to the peer's information.
+	 */
+	private static PeerInfo toPeerInfo(String pid) {
+		String[] data = pid.split(":");
+		return new PeerInfo(pid, data[0], Integer.parseInt(data[1]));
+	}
+	
+
+	/**
+	 * Floods a query for files whose names contain the given key to all
+	 * neighbors, without waiting for their acknowledgements. Matches are
+	 * reported back to this node with RESP messages, and added to its
+	 * file table as they arrive.
+	 * <p>
+	 * If the distributed index is enabled, the key is instead split into
+	 * keywords, the longest of which is looked up in the index, in the
+	 * background; the files whose names contain all of the keywords are 
+	 * added to the file table, and the ttl is not used.
+	 * 
+	 * @param key the substring to search for
+	 * @param ttl the number of hops the query may be forwarded
+	 */
+	public void search(String key, int ttl) {
+		if (dht != null) {
+			searchDht(key);
 			return;
-		PeerInfo pd = new PeerInfo(host, port);
-		List<PeerMessage> resplist = this.connectAndSend(pd, PEERNAME, "", true);
-		if (resplist == null || resplist.size() == 0)
+		}
+		
+		String qid = newQueryId();
+		seenQueries.add(qid);   // ignore the query if it comes back here
+		String msgdata = String.format("%s %s %d %s", getId(), key, ttl, qid);
+		for (String pid : getPeerKeys())
+			sendToPeerAsync(pid, QUERY, msgdata, QUERYTIMEOUT);
+	}
+	
+	
+	private void searchDht(String key) {
+		final Set<String> kws = keywords(key);
+		String longest = "";
+		for (String kw : kws)
+			if (kw.length() > longest.length())
+				longest = kw;
+		if (longest.length() == 0)
 			return;
+		
+		final String lookup = longest;
+		try {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					for (String entry : dht.get("kw:" + lookup)) {
+						int sp = entry.indexOf(' ');
+						if (sp < 0)
+							continue;
+						String filename = entry.substring(sp + 1);
+						if (keywords(filename).containsAll(kws))
+							addFileOwner(filename, entry.substring(0, sp));
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			LoggerUtil.getLogger().warning("Not searching: " + e);
+		}
+	}
+	
+	
+	/*
+	 * Returns a new query id, unique with high probability.
+	 */
+	private String newQueryId() {
+		synchronized (random) {
+			return Long.toHexString(random.nextLong());
+		}
+	}
+	
+
+	/**
+	 * Joins the network through the peer at the given address, adding the
+	 * peers found around it to the peer list until the list is full. The
+	 * network is explored breadth first, up to the given number of hops
+	 * from the first peer: all the peers of a layer are contacted at once,
+	 * up to BUILDPARALLELISM at a time, each with a single NJON message 
+	 * that both joins it and lists its neighbors, which form the next 
+	 * layer. A peer that does not know NJON is joined with separate NAME,
+	 * JOIN and LIST messages instead. This method blocks until the
+	 * exploration is complete, which takes about one round trip per layer.
+	 * 
+	 * @param host the host of a peer in the network
+	 * @param port the port of that peer
+	 * @param hops the number of layers to explore
+	 */
+	public void buildPeers(String host, int port, int hops) {
+		LoggerUtil.getLogger().fine("build peers");
+		
+		// addresses already contacted or known, as host:port
+		Set<String> visited = new HashSet<String>();
+		visited.add(getHost() + ":" + getPort());
+		for (String pid : getPeerKeys()) {
+			PeerInfo pd = getPeer(pid);
+			if (pd != null)
+				visited.add(pd.getHost() + ":" + pd.getPort());
+		}
+		
+		List<PeerInfo> layer = new ArrayList<PeerInfo>();
+		if (visited.add(host + ":" + port))
+			layer.add(new PeerInfo(host, port));
+		String selfdata = String.format("%s %s %d", getId(), getHost(), getPort());
+		
+		for (int h = 0; h < hops && !layer.isEmpty(); h++) {
+			final List<PeerInfo> found = new ArrayList<PeerInfo>();
+			final Semaphore slots = new Semaphore(BUILDPARALLELISM);
+			for (final PeerInfo pd : layer) {
+				if (maxPeersReached())
+					break;
+				slots.acquireUninterruptibly();
+				connectAndSendAsync(pd, new PeerMessage(NAMEJOIN, selfdata), 
+									BUILDTIMEOUT).whenComplete(
+						new BiConsumer<List<PeerMessage>,Throwable>() {
+					public void accept(List<PeerMessage> resplist, Throwable error) {
+						try {
+							List<PeerInfo> neighbors = error == null 
+									? joinPeer(pd, resplist) 
+									: Collections.<PeerInfo>emptyList();
+							synchronized (found) {
+								found.addAll(neighbors);
+							}
+						}
+						finally {
+							slots.release();
+						}
+					}
+				});
+			}
+			// wait for the whole layer
+			slots.acquireUninterruptibly(BUILDPARALLELISM);
+			if (maxPeersReached())
+				break;
+			
+			layer = new ArrayList<PeerInfo>();
+			for (PeerInfo pd : found)
+				if (visited.add(pd.getHost() + ":" + pd.getPort()) 
+						&& getPeer(pd.getId()) == null)
+					layer.add(pd);
+		}
+	}
+	
+	
+	/*
+	 * Completes the joining of a peer contacted by buildPeers, given its
+	 * replies to NJON, and returns its neighbors.
+	 */
+	private List<PeerInfo> joinPeer(PeerInfo pd, List<PeerMessage> resplist) {
+		if (resplist.isEmpty())
+			return legacyJoinPeer(pd);
+		if (!resplist.get(0).getMsgType().equals(REPLY)) {
+			LoggerUtil.getLogger().fine("Join refused by " + pd + ": " 
+										+ resplist.get(0).getMsgData());
+			return Collections.<PeerInfo>emptyList();
+		}
+		
+		String[] lines = resplist.get(0).getMsgData().split("\n");
+		String[] data = lines[0].split("\\s");
+		pd.setId(data[0]);
+		LoggerUtil.getLogger().fine("contacted " + data[0]);
+		// a full peer has not added this node, so is not added either
+		if (data.length > 1 && !data[1].equals("full"))
+			addPeer(pd);
+		
+		List<PeerInfo> neighbors = new ArrayList<PeerInfo>();
+		for (int i = 1; i < lines.length; i++) {
+			PeerInfo n = parsePeer(lines[i]);
+			if (n != null && !n.getId().equals(getId()))
+				neighbors.add(n);
+		}
+		return neighbors;
+	}
+	
+	
+	/*
+	 * Joins a peer with separate NAME, JOIN and LIST messages, and returns
+	 * its neighbors.
+	 */
+	private List<PeerInfo> legacyJoinPeer(PeerInfo pd) {
+		List<PeerMessage> resplist = connectAndSend(pd, PEERNAME, "", true);
+		if (resplist.size() == 0)
+			return Collections.<PeerInfo>emptyList();
 		String peerid = resplist.get(0).getMsgData();
 		LoggerUtil.getLogger().fine("contacted " + peerid);
 		pd.setId(peerid);
 		
-		String resp = this.connectAndSend(pd, INSERTPEER,
-				String.format("%s %s %d", this.getId(), this.getHost(), this.getPort()), true).get(0).getMsgType();
-		if (!resp.equals(REPLY) || this.getPeerKeys().contains(peerid))
-			return;
-		
-		this.addPeer(pd);
+		resplist = connectAndSend(pd, INSERTPEER, String.format("%s %s %d", 
+				getId(), getHost(), getPort()), true);
+		if (resplist.size() == 0 || !resplist.get(0).getMsgType().equals(REPLY))
+			return Collections.<PeerInfo>emptyList();
+		addPeer(pd);
 		
-		// do recursive depth first search to add more peers
-		resplist = this.connectAndSend(pd, LISTPEER, "", true);
-		
-		if (resplist.size() > 1) {
-			resplist.remove(0);
-			for (PeerMessage pm : resplist) {
-				String[] data = pm.getMsgData().split("\\s");
-				String nextpid = data[0];
-				String nexthost = data[1];
-				int nextport = Integer.parseInt(data[2]);
-				if (!nextpid.equals(this.getId()))
-					buildPeers(nexthost, nextport, hops - 1);
+		List<PeerInfo> neighbors = new ArrayList<PeerInfo>();
+		resplist = connectAndSend(pd, LISTPEER, MessageBatch.BATCH, true);
+		for (int i = 1; i < resplist.size(); i++) {
+			PeerInfo n = parsePeer(resplist.get(i).getMsgData());
+			if (n != null && !n.getId().equals(getId()))
+				neighbors.add(n);
+		}
+		return neighbors;
+	}
+	
+	
+	/*
+	 * Admits a peer asking to join while the peer list is full, in place
+	 * of the worst neighbor if it scores better (see Node.offerPeer). The
+	 * round-trip time to the peer is measured first if it is not known,
+	 * in the same way as the ping stabilizers measure the neighbors.
+	 */
+	private boolean admitCandidate(PeerInfo pd) {
+		if (getPeerScores().getRtt(pd.getId()) < 0) {
+			try {
+				getPeerScores().recordRtt(pd.getId(), 
+						measureRtt(pd, "PING", BUILDTIMEOUT));
 			}
+			catch (IOException e) {
+				LoggerUtil.getLogger().fine("Cannot reach candidate " + pd + ": " + e);
+				return false;
+			}
+		}
+		return offerPeer(pd);
+	}
+	
+	
+	/*
+	 * Parses a "pid host port" line, returning null if it is malformed.
+	 */
+	private static PeerInfo parsePeer(String line) {
+		String[] data = line.trim().split("\\s");
+		if (data.length != 3)
+			return null;
+		try {
+			return new PeerInfo(data[0], data[1], Integer.parseInt(data[2]));
+		}
+		catch (NumberFormatException e) {
+			return null;
 		}
 	}
 	
@@ -148,14 +660,6 @@ public class FileShareNode extends Node {
 		public JoinHandler(Node peer) { this.peer = peer; }
 				
 		public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
-			if (peer.maxPeersReached()) {
-				LoggerUtil.getLogger().fine("maxpeers reached " + 
-									peer.getMaxPeers());
-				peerconn.sendData(new PeerMessage(ERROR, "Join: " +
-									"too many peers"));
-				return;
-			}
-			
 			// check for correct number of arguments
 			String[] data = msg.getMsgData().split("\\s");
 			if (data.length != 3) {
@@ -174,28 +678,40 @@ public class FileShareNode extends Node {
 			else if (info.getId().equals(peer.getId())) 
 				peerconn.sendData(new PeerMessage(ERROR, "Join: " +
 										"attempt to insert self"));
-			else {
-				peer.addPeer(info);
+			else if (peer.addPeer(info) || admitCandidate(info))
 				peerconn.sendData(new PeerMessage(REPLY, "Join: " +
 										"peer added: " + info.getId()));
+			else {
+				LoggerUtil.getLogger().fine("maxpeers reached " + 
+									peer.getMaxPeers());
+				peerconn.sendData(new PeerMessage(ERROR, "Join: " +
+									"too many peers"));
 			}
 		}
 	}
 	
-	/* msg syntax: LIST */
+	/* msg syntax: LIST [BTCH]
+	 * The replies are sent as one batch if the request asks for it, or
+	 * came in a batch; otherwise, for older nodes, one message each. */
 	private class ListHandler implements HandlerInterface {
 		private Node peer;
 		
 		public ListHandler(Node peer) { this.peer = peer; }
 		
 		public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
-			peerconn.sendData(new PeerMessage(REPLY, 
+			if (msg.getMsgData().trim().equals(MessageBatch.BATCH))
+				peerconn.setAcceptsBatches(true);
+			List<PeerMessage> replies = new ArrayList<PeerMessage>();
+			replies.add(new PeerMessage(REPLY, 
 					String.format("%d", peer.getNumberOfPeers())));
 			for (String pid : peer.getPeerKeys()) {
-				peerconn.sendData(new PeerMessage(REPLY, 
-						String.format("%s %s %d", pid, peer.getPeer(pid).getHost(),
-								peer.getPeer(pid).getPort())));
+				PeerInfo pd = peer.getPeer(pid);
+				if (pd == null)
+					continue;
+				replies.add(new PeerMessage(REPLY, 
+						String.format("%s %s %d", pid, pd.getHost(), pd.getPort())));
 			}
+			peerconn.sendBatch(replies);
 		}
 	}
 	
@@ -210,13 +726,58 @@ public class FileShareNode extends Node {
 		}
 	}
 
-	/* msg syntax: QUER return-pid key ttl */
+	/* msg syntax: NJON pid host port
+	 * the reply is a first line "own-pid status", where status is one of
+	 * added, known or full, followed by a "pid host port" line for each 
+	 * peer in the peer list
+	 */
+	private class NameJoinHandler implements HandlerInterface {
+		private Node peer;
+		
+		public NameJoinHandler(Node peer) { this.peer = peer; }
+		
+		public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
+			PeerInfo info = parsePeer(msg.getMsgData());
+			if (info == null) {
+				peerconn.sendData(new PeerMessage(ERROR, "Join: " +
+									"incorrect arguments"));
+				return;
+			}
+			if (info.getId().equals(peer.getId())) {
+				peerconn.sendData(new PeerMessage(ERROR, "Join: " +
+									"attempt to insert self"));
+				return;
+			}
+			
+			String status;
+			if (peer.getPeer(info.getId()) != null)
+				status = "known";
+			else if (peer.addPeer(info) || admitCandidate(info))
+				status = "added";
+			else
+				status = "full";
+			
+			StringBuilder sb = new StringBuilder(peer.getId() + " " + status);
+			for (String pid : peer.getPeerKeys()) {
+				PeerInfo pd = peer.getPeer(pid);
+				if (pd == null || pid.equals(info.getId()))
+					continue;
+				sb.append(String.format("\n%s %s %d", pid, pd.getHost(), 
+										pd.getPort()));
+			}
+			peerconn.sendData(new PeerMessage(REPLY, sb.toString()));
+		}
+	}
+	
+	/* msg syntax: QUER return-pid key ttl [query-id] 
+	 * a query without an id is given one by the first node to receive it
+	 */
 	private class QueryHandler implements HandlerInterface {
 		private FileShareNode peer;
 		public QueryHandler(FileShareNode peer) { this.peer = peer; }
 		public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
 			String[] data = msg.getMsgData().split("\\s");
-			if (data.length != 3) {
+			if (data.length != 3 && data.length != 4) {
 				peerconn.sendData(new PeerMessage(ERROR, "Query: incorrect arguments"));
 				return;
 			}
@@ -224,61 +785,92 @@ public class FileShareNode extends Node {
 			String ret_pid = data[0].trim();
 			String key = data[1].trim();
 			int ttl = Integer.parseInt(data[2].trim());
+			String qid = data.length == 4 ? data[3].trim() : peer.newQueryId();
+			if (!peer.seenQueries.add(qid)) {
+				// already processed this query, arriving by another path
+				peerconn.sendData(new PeerMessage(REPLY, "Query: duplicate"));
+				return;
+			}
 			peerconn.sendData(new PeerMessage(REPLY, "Query: ACK"));
 			/* After acknowledging the query, this connection will be closed. A
-			 * separate thread will be started to actually perform the task of the
+			 * separate task will be started to actually perform the task of the
 			 * query...
 			 */ 
 			
-			QueryProcessor qp = new QueryProcessor(peer, ret_pid, key, ttl);
-			qp.start();
+			QueryProcessor qp = new QueryProcessor(peer, ret_pid, key, ttl, qid);
+			try {
+				peer.getExecutor().execute(qp);
+			}
+			catch (RejectedExecutionException e) {
+				LoggerUtil.getLogger().warning("Query dropped: " + e);
+			}
 		}
 	}
 
-	private class QueryProcessor extends Thread {
+	private class QueryProcessor implements Runnable {
 		private FileShareNode peer;
 		private String ret_pid;
 		private String key;
 		private int ttl;
+		private String qid;
 		
 		public QueryProcessor(FileShareNode peer, String ret_pid, 
-								String key, int ttl) {
+								String key, int ttl, String qid) {
 			this.peer = peer;
 			this.ret_pid = ret_pid;
 			this.key = key;
 			this.ttl = ttl;
+			this.qid = qid;
 		}
 		
 		public void run() {
-			// search through this node's list of files for a filename 
-			// containing the key
-			for (String filename : peer.files.keySet()) {
-				if (filename.toUpperCase().indexOf(key.toUpperCase()) >= 0) {
-					String fpid = peer.files.get(filename);
-					String[] data = ret_pid.split(":");
-					String host = data[0];
-					int port = Integer.parseInt(data[1]);
-					peer.connectAndSend(new PeerInfo(ret_pid, host, port), 
-							QRESPONSE, filename + " " + fpid, true);
-					LoggerUtil.getLogger().fine("Sent QRESP " 
-							+ new PeerInfo(ret_pid, host, port) 
-							+ " " + filename + " " + fpid);
-					return;
+			// look up the filenames containing the key in this node's index,
+			// and report them, with every known holder of each (so that a 
+			// file can be downloaded from all of them at once), in one batch
+			StringBuilder results = new StringBuilder();
+			for (String filename : peer.fileIndex.search(key, MAXRESULTS)) {
+				for (String fpid : peer.getFileOwners(filename)) {
+					if (results.length() > 0)
+						results.append('\n');
+					results.append(filename + " " + fpid);
 				}
 			}
+			if (results.length() > 0) {
+				String[] data = ret_pid.split(":");
+				String host = data[0];
+				int port = Integer.parseInt(data[1]);
+				peer.connectAndSend(new PeerInfo(ret_pid, host, port), 
+						QRESPONSE, results.toString(), true);
+				LoggerUtil.getLogger().fine("Sent QRESP " 
+						+ new PeerInfo(ret_pid, host, port) + " " + results);
+				return;
+			}
 			
 			// will only reach here if key not found... 
 			// in which case propagate query to neighbors, if there is still
-			// time-to-live for the query
+			// time-to-live for the query. The query is sent to all neighbors
+			// at once, so this takes as long as the slowest neighbor.
 			if (ttl > 0) {
-				String msgdata = String.format("%s %s %d", ret_pid, key, ttl - 1);
+				String msgdata = String.format("%s %s %d %s", ret_pid, key, 
+											   ttl - 1, qid);
+				List<CompletableFuture<List<PeerMessage>>> acks = 
+					new ArrayList<CompletableFuture<List<PeerMessage>>>();
 				for (String nextpid : peer.getPeerKeys())
-					peer.sendToPeer(nextpid, QUERY, msgdata, true);
+					acks.add(peer.sendToPeerAsync(nextpid, QUERY, msgdata, 
+												  QUERYTIMEOUT));
+				for (CompletableFuture<List<PeerMessage>> ack : acks) {
+					try {
+						ack.join();
+					}
+					catch (CompletionException e) {
+						LoggerUtil.getLogger().fine("Query not forwarded: " + e);
+					}
+				}
 			}
 		}
 	}
 
-	/* msg syntax: RESP file-name pid */
+	/* msg syntax: RESP file-name pid [\n file-name pid ...] */
 	private class QResponseHandler implements HandlerInterface {
 		@SuppressWarnings("unused")
 		private Node peer;
@@ -286,28 +878,35 @@ public class FileShareNode extends Node {
 		public QResponseHandler(Node peer) { this.peer = peer; }
 		
 		public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
-			String[] data = msg.getMsgData().split("\\s");
-			if (data.length != 2) {
-				peerconn.sendData(new PeerMessage(ERROR, "Resp: "
-						+ "incorrect arguments"));
-				return;
+			int added = 0;
+			for (String line : msg.getMsgData().split("\n")) {
+				String[] data = line.trim().split("\\s");
+				if (data.length != 2) {
+					peerconn.sendData(new PeerMessage(ERROR, "Resp: "
+							+ "incorrect arguments"));
+					return;
+				}
+				
+				String filename = data[0];
+				String pid = data[1];
+				if (addFileOwner(filename, pid))
+					added++;
 			}
 			
-			String filename = data[0];
-			String pid = data[1];
-			if (files.containsKey(filename)) {
+			if (added == 0) {
 				peerconn.sendData(new PeerMessage(ERROR, "Resp: " 
-						+ "can't add duplicate file " + filename));
+						+ "can't add duplicate file info"));
 				return;
 			}
-			
-			files.put(filename, pid);
 			peerconn.sendData(new PeerMessage(REPLY, "Resp: "
-					+ "file info added " + filename));
+					+ added + " file info added"));
 		}
 	}
 
-	/* msg syntax: FGET file-name */
+	/* msg syntax: FGET file-name [offset length]
+	 * replies: REPL with the given range of the file (by default, the whole
+	 * file) as its data
+	 */
 	private class FileGetHandler implements HandlerInterface {
 		@SuppressWarnings("unused")
 		private Node peer;
@@ -315,32 +914,145 @@ public class FileShareNode extends Node {
 		public FileGetHandler(Node peer) { this.peer = peer; }
 		
 		public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
-			String filename = msg.getMsgData().trim();
+			String[] data = msg.getMsgData().trim().split("\\s+");
+			String filename = data[0];
 			if (!files.containsKey(filename)) {
 				peerconn.sendData(new PeerMessage(ERROR, "Fget: "
 						+ "file not found " + filename));
 				return;
 			}
+			long[] range = parseRange(data);
+			if (range == null) {
+				peerconn.sendData(new PeerMessage(ERROR, "Fget: "
+						+ "incorrect arguments"));
+				return;
+			}
 			
-			byte[] filedata = null;
+			FileChannel infile = null;
 			try {
-				FileInputStream infile = new FileInputStream(filename);
-				int len = infile.available();
-				filedata = new byte[len];
-				infile.read(filedata);
-				infile.close();
+				infile = FileChannel.open(Paths.get(filename), 
+										  StandardOpenOption.READ);
+				long size = infile.size();
+				long offset = Math.min(range[0], size);
+				long length = Math.min(range[1], size - offset);
+				if (length > Integer.MAX_VALUE - 8) {
+					peerconn.sendData(new PeerMessage(ERROR, "Fget: "
+							+ "file too large " + filename));
+					return;
+				}
+				// sent straight from the file to the socket if possible
+				peerconn.sendData(new PeerMessage(REPLY, new byte[0]), 
+								  infile, offset, (int)length);
 			}
 			catch (IOException e) {
 				LoggerUtil.getLogger().info("Fget: error reading file: " + e);
 				peerconn.sendData(new PeerMessage(ERROR, "Fget: "
 						+ "error reading file " + filename));
+			}
+			finally {
+				try {
+					if (infile != null) infile.close();
+				} catch (IOException e) { }
+			}
+		}
+	}
+
+	/* msg syntax: FSTR file-name [offset length]
+	 * replies: REPL "file-size chunk-size file-crc32", then FCHK offset crc32
+	 * bytes... covering the given range of the file (by default, the whole
+	 * file). The checksum of the whole file identifies its contents, so 
+	 * that a download resumed or gathered from several holders can tell
+	 * that every range comes from the same file.
+	 */
+	private class FileStreamHandler implements HandlerInterface {
+		@SuppressWarnings("unused")
+		private Node peer;
+		
+		public FileStreamHandler(Node peer) { this.peer = peer; }
+		
+		public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
+			String[] data = msg.getMsgData().trim().split("\\s+");
+			String filename = data[0];
+			if (!files.containsKey(filename)) {
+				peerconn.sendData(new PeerMessage(ERROR, "Fstr: "
+						+ "file not found " + filename));
+				return;
+			}
+			long[] range = parseRange(data);
+			if (range == null) {
+				peerconn.sendData(new PeerMessage(ERROR, "Fstr: "
+						+ "incorrect arguments"));
 				return;
 			}
+			long offset = range[0];
+			long length = range[1];
 			
-			peerconn.sendData(new PeerMessage(REPLY, filedata));
+			FileChannel infile = null;
+			try {
+				infile = FileChannel.open(Paths.get(filename), 
+										  StandardOpenOption.READ);
+				long size = infile.size();
+				long end = length > size - offset ? size : offset + length;
+				peerconn.sendData(new PeerMessage(REPLY, String.format("%d %d %08x", 
+						size, CHUNKSIZE, fileChecksum(filename, infile))));
+				
+				// the checksums are computed from a mapping of the file, and
+				// the chunks themselves are sent straight from the file
+				CRC32 crc = new CRC32();
+				MappedByteBuffer window = null;
+				long windowStart = 0;
+				while (offset < end && !peerconn.sendFailed()) {
+					int n = (int)Math.min(CHUNKSIZE, end - offset);
+					if (window == null || offset + n > windowStart + window.capacity()) {
+						windowStart = offset;
+						window = infile.map(FileChannel.MapMode.READ_ONLY, offset,
+											Math.min(MAPWINDOW, end - offset));
+					}
+					crc.reset();
+					crc.update(window.slice((int)(offset - windowStart), n));
+					
+					ByteBuffer header = ByteBuffer.allocate(12);
+					header.putLong(offset).putInt((int)crc.getValue());
+					header.flip();
+					peerconn.sendData(new PeerMessage(FILECHUNK, header), 
+									  infile, offset, n);
+					offset += n;
+				}
+			}
+			catch (IOException e) {
+				LoggerUtil.getLogger().info("Fstr: error reading file: " + e);
+				peerconn.sendData(new PeerMessage(ERROR, "Fstr: "
+						+ "error reading file " + filename));
+			}
+			finally {
+				try {
+					if (infile != null) infile.close();
+				} catch (IOException e) { }
+			}
 		}
 	}
 
+	/*
+	 * Returns the CRC-32 checksum of the whole of a shared file, which is
+	 * computed once for each version (size and modification time) of the 
+	 * file.
+	 */
+	private long fileChecksum(String filename, FileChannel infile) 
+	throws IOException {
+		long size = infile.size();
+		long mtime = new File(filename).lastModified();
+		long[] cached = checksums.get(filename);
+		if (cached != null && cached[0] == size && cached[1] == mtime)
+			return cached[2];
+		
+		CRC32 crc = new CRC32();
+		for (long pos = 0; pos < size; pos += MAPWINDOW)
+			crc.update(infile.map(FileChannel.MapMode.READ_ONLY, pos, 
+								  Math.min(MAPWINDOW, size - pos)));
+		checksums.put(filename, new long[] { size, mtime, crc.getValue() });
+		return crc.getValue();
+	}
+
 	/* msg syntax: QUIT pid */
 	private class QuitHandler implements HandlerInterface {
 		private Node peer;
@@ -0,0 +1,416 @@
+/*
+	File: LoadDriver.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import peerbase.*;
+import peerbase.util.MetricsHttpServer;
+
+/**
+ * A load generator for capacity planning and regression testing. It
+ * starts a number of FileShareNodes in this process, listening on
+ * consecutive loopback ports, and joins each to the network through
+ * buildPeers with a random earlier node. Every node shares some files
+ * of its own. A number of client threads then send a weighted mix of
+ * QUER, LIST, JOIN and FGET requests to random nodes for the given time,
+ * after which the throughput, the error count and the 50th, 99th and 
+ * 99.9th percentile latencies of each type of request are reported.
+ * <pre>
+ *   java peerbase.sample.LoadDriver [options]
+ *     -nodes N         nodes to start (100)
+ *     -port P          port of the first node (20000)
+ *     -maxpeers M      peer list size of each node (8)
+ *     -server S        blocking or nio (nio)
+ *     -files F         files shared by each node (10)
+ *     -filesize B      size of each file in bytes (16384)
+ *     -clients C       client threads (16)
+ *     -duration S      seconds of load, after the warmup (30)
+ *     -warmup S        seconds of load not measured (5)
+ *     -ttl T           time-to-live of queries (2)
+ *     -pool            send through a connection pool
+ *     -mix quer=40,list=30,join=10,fget=20   weights of the request types
+ *     -metrics P       serve the metrics of the nodes, added up, on port P
+ * </pre>
+ * Latencies are measured from sending the request to receiving the last
+ * reply; for QUER, the reply is the acknowledgement of the first node,
+ * and the forwarding and RESP messages that follow are load on the
+ * network but are not timed.
+ *
+ * @author PeerBase contributors
+ */
+public class LoadDriver {
+	
+	private static final String[] WORDS = { "alpha", "beta", "gamma", "delta",
+		"song", "live", "remix", "demo", "track", "album", "intro", "final",
+		"mix", "edit", "cover", "tape", "night", "day", "blue", "red" };
+	
+	private int nodes = 100;
+	private int basePort = 20000;
+	private int maxPeers = 8;
+	private int serverMode = Node.NIO_SERVER;
+	private int filesPerNode = 10;
+	private int fileSize = 16384;
+	private int clients = 16;
+	private int duration = 30;
+	private int warmup = 5;
+	private int ttl = 2;
+	private boolean pooled = false;
+	private int metricsPort = -1;
+	private LinkedHashMap<String,Integer> mix;
+	
+	private Metrics fleetMetrics;   // shared by the nodes, not the client
+	private FileShareNode[] fleet;
+	private List<String> fileNames;   // of all files shared, with their node
+	private List<String> fileOwners;
+	private File dir;
+	
+	
+	public LoadDriver() {
+		mix = new LinkedHashMap<String,Integer>();
+		fleetMetrics = new Metrics();
+		mix.put(FileShareNode.QUERY, 40);
+		mix.put(FileShareNode.LISTPEER, 30);
+		mix.put(FileShareNode.INSERTPEER, 10);
+		mix.put(FileShareNode.FILEGET, 20);
+	}
+	
+	
+	/**
+	 * Starts the nodes, shares their files and builds the network.
+	 * @throws IOException if the files cannot be created
+	 * @throws InterruptedException if interrupted
+	 */
+	public void start() throws IOException, InterruptedException {
+		dir = new File(System.getProperty("java.io.tmpdir"), 
+					   "peerbase-load-" + basePort);
+		dir.mkdirs();
+		fileNames = new ArrayList<String>();
+		fileOwners = new ArrayList<String>();
+		Random random = new Random(1);
+		byte[] content = new byte[fileSize];
+		random.nextBytes(content);
+		
+		fleet = new FileShareNode[nodes];
+		for (int i = 0; i < nodes; i++) {
+			final FileShareNode node = new FileShareNode(maxPeers, 
+					new PeerInfo("localhost", basePort + i), serverMode);
+			node.setMetrics(fleetMetrics);
+			if (pooled)
+				node.setConnectionPool(new ConnectionPool(4, 60000));
+			fleet[i] = node;
+			for (int f = 0; f < filesPerNode; f++) {
+				File file = new File(dir, String.format("%s_%s_%d_%d.bin", 
+						WORDS[random.nextInt(WORDS.length)],
+						WORDS[random.nextInt(WORDS.length)], i, f));
+				RandomAccessFile out = new RandomAccessFile(file, "rw");
+				out.write(content);
+				out.close();
+				node.addLocalFile(file.getPath());
+				fileNames.add(file.getPath());
+				fileOwners.add(node.getId());
+			}
+			Thread t = new Thread(new Runnable() {
+				public void run() { node.mainLoop(); }
+			}, "LoadDriver-node-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		Thread.sleep(500);   // let the servers start listening
+		
+		long start = System.nanoTime();
+		for (int i = 1; i < nodes; i++)
+			fleet[i].buildPeers("localhost", basePort + random.nextInt(i), 2);
+		int links = 0;
+		for (FileShareNode node : fleet)
+			links += node.getNumberOfPeers();
+		System.out.printf("Started %d nodes, %d peer links, in %.1f s%n", nodes, 
+						  links, (System.nanoTime() - start) / 1e9);
+	}
+	
+	
+	/**
+	 * Runs the client threads for the warmup and then for the measured
+	 * duration, and prints the report.
+	 * @throws InterruptedException if interrupted
+	 */
+	public void run() throws InterruptedException {
+		final Node client = new Node(0, new PeerInfo("localhost", basePort - 1));
+		if (pooled)
+			client.setConnectionPool(new ConnectionPool(4, 60000));
+		
+		final String[] types = mix.keySet().toArray(new String[0]);
+		final int[] cumulative = new int[types.length];
+		int total = 0;
+		for (int i = 0; i < types.length; i++)
+			cumulative[i] = total += mix.get(types[i]);
+		final int totalWeight = total;
+		
+		final long measureStart = System.nanoTime() + warmup * 1000000000L;
+		final long end = measureStart + duration * 1000000000L;
+		final Recorder[][] recorders = new Recorder[clients][types.length];
+		final CountDownLatch finished = new CountDownLatch(clients);
+		for (int c = 0; c < clients; c++) {
+			final Recorder[] mine = recorders[c];
+			for (int i = 0; i < types.length; i++)
+				mine[i] = new Recorder();
+			final Random random = new Random(c);
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						long now;
+						while ((now = System.nanoTime()) < end) {
+							int w = random.nextInt(totalWeight);
+							int i = 0;
+							while (cumulative[i] <= w)
+								i++;
+							boolean ok = request(client, types[i], random);
+							long elapsed = System.nanoTime() - now;
+							if (now >= measureStart)
+								mine[i].record(elapsed, ok);
+						}
+					}
+					finally {
+						finished.countDown();
+					}
+				}
+			}, "LoadDriver-client-" + c);
+			t.setDaemon(true);
+			t.start();
+		}
+		finished.await();
+		
+		System.out.printf("%n%d clients, %d s measured after %d s warmup, %s server%s%n",
+				clients, duration, warmup, 
+				serverMode == Node.NIO_SERVER ? "nio" : "blocking",
+				pooled ? ", pooled connections" : "");
+		System.out.printf("%-6s %10s %8s %10s %9s %9s %9s %9s%n", "type", "requests",
+				"errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+		Recorder all = new Recorder();
+		for (int i = 0; i < types.length; i++) {
+			Recorder r = new Recorder();
+			for (int c = 0; c < clients; c++)
+				r.merge(recorders[c][i]);
+			report(types[i], r);
+			all.merge(r);
+		}
+		report("all", all);
+	}
+	
+	
+	/**
+	 * Stops the nodes and deletes their files.
+	 */
+	public void stop() {
+		for (FileShareNode node : fleet)
+			node.shutdown();
+		for (String name : fileNames)
+			new File(name).delete();
+		dir.delete();
+	}
+	
+	
+	/*
+	 * Sends one request of the given type to a random node, returning
+	 * whether it was answered as expected.
+	 */
+	private boolean request(Node client, String type, Random random) {
+		FileShareNode target = fleet[random.nextInt(nodes)];
+		PeerInfo pd = new PeerInfo(target.getId(), target.getHost(), target.getPort());
+		String data;
+		if (type.equals(FileShareNode.QUERY)) {
+			// as if issued by another node, which receives the responses
+			FileShareNode origin = fleet[random.nextInt(nodes)];
+			data = String.format("%s %s %d %s", origin.getId(), 
+					WORDS[random.nextInt(WORDS.length)], ttl, 
+					Long.toHexString(random.nextLong()));
+		}
+		else if (type.equals(FileShareNode.INSERTPEER)) {
+			FileShareNode other = fleet[random.nextInt(nodes)];
+			data = String.format("%s %s %d", other.getId(), other.getHost(), 
+								 other.getPort());
+		}
+		else if (type.equals(FileShareNode.FILEGET)) {
+			int f = random.nextInt(fileNames.size());
+			String owner = fileOwners.get(f);
+			pd = new PeerInfo(owner, "localhost", 
+							  Integer.parseInt(owner.substring(owner.indexOf(':') + 1)));
+			data = fileNames.get(f);
+		}
+		else if (type.equals(FileShareNode.LISTPEER)) {
+			data = MessageBatch.BATCH;
+		}
+		else {
+			data = "";
+		}
+		
+		List<PeerMessage> resplist = client.connectAndSend(pd, 
+				new PeerMessage(type, data), true);
+		if (resplist.isEmpty())
+			return false;
+		// a refused join is still a complete exchange
+		return type.equals(FileShareNode.INSERTPEER) 
+				|| resplist.get(0).getMsgType().equals(FileShareNode.REPLY);
+	}
+	
+	
+	private void report(String type, Recorder r) {
+		long[] lat = r.sorted();
+		System.out.printf("%-6s %10d %8d %10.1f %9.3f %9.3f %9.3f %9.3f%n", type, 
+				lat.length, r.errors, lat.length / (double)duration,
+				percentile(lat, 0.50), percentile(lat, 0.99), 
+				percentile(lat, 0.999), lat.length == 0 ? 0 : lat[lat.length - 1] / 1e6);
+	}
+	
+	
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int i = (int)Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, i)] / 1e6;
+	}
+	
+	
+	/*
+	 * The latencies of the requests of one type made by one client, in
+	 * nanoseconds, kept in full so that the percentiles are exact.
+	 */
+	private static class Recorder {
+		private long[] samples = new long[1024];
+		private int count = 0;
+		private long errors = 0;
+		
+		public void record(long nanos, boolean ok) {
+			if (!ok)
+				errors++;
+			if (count == samples.length)
+				samples = Arrays.copyOf(samples, count * 2);
+			samples[count++] = nanos;
+		}
+		
+		public void merge(Recorder other) {
+			for (int i = 0; i < other.count; i++)
+				record(other.samples[i], true);
+			errors += other.errors;
+		}
+		
+		public long[] sorted() {
+			long[] s = Arrays.copyOf(samples, count);
+			Arrays.sort(s);
+			return s;
+		}
+	}
+	
+	
+	public static void main(String[] args) throws Exception {
+		LoadDriver driver = new LoadDriver();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String opt = args[i];
+				if (opt.equals("-pool")) {
+					driver.pooled = true;
+					continue;
+				}
+				if (i + 1 == args.length)
+					throw new IllegalArgumentException("Missing value for " + opt);
+				String val = args[++i];
+				if (opt.equals("-nodes")) driver.nodes = Integer.parseInt(val);
+				else if (opt.equals("-port")) driver.basePort = Integer.parseInt(val);
+				else if (opt.equals("-maxpeers")) driver.maxPeers = Integer.parseInt(val);
+				else if (opt.equals("-files")) driver.filesPerNode = Integer.parseInt(val);
+				else if (opt.equals("-filesize")) driver.fileSize = Integer.parseInt(val);
+				else if (opt.equals("-clients")) driver.clients = Integer.parseInt(val);
+				else if (opt.equals("-duration")) driver.duration = Integer.parseInt(val);
+				else if (opt.equals("-warmup")) driver.warmup = Integer.parseInt(val);
+				else if (opt.equals("-ttl")) driver.ttl = Integer.parseInt(val);
+				else if (opt.equals("-metrics")) driver.metricsPort = Integer.parseInt(val);
+				else if (opt.equals("-server")) 
+					driver.serverMode = val.equals("blocking") ? Node.BLOCKING_SERVER 
+															   : Node.NIO_SERVER;
+				else if (opt.equals("-mix")) 
+					driver.mix = parseMix(val);
+				else
+					throw new IllegalArgumentException("Unknown option " + opt);
+			}
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: java peerbase.sample.LoadDriver [-nodes N] "
+					+ "[-port P] [-maxpeers M] [-server blocking|nio] [-files F] "
+					+ "[-filesize B] [-clients C] [-duration S] [-warmup S] [-ttl T] "
+					+ "[-pool] [-mix quer=40,list=30,join=10,fget=20] [-metrics P]");
+			System.exit(-1);
+		}
+		
+		LoggerUtil.setHandlersLevel(Level.SEVERE);
+		if (driver.metricsPort >= 0)
+			new MetricsHttpServer(driver.fleetMetrics, driver.metricsPort).start();
+		driver.start();
+		try {
+			driver.run();
+		}
+		finally {
+			driver.stop();
+		}
+		System.exit(0);
+	}
+	
+	
+	/*
+	 * Parses a mix such as "quer=40,list=30", mapping message types to
+	 * weights.
+	 */
+	private static LinkedHashMap<String,Integer> parseMix(String s) {
+		LinkedHashMap<String,Integer> mix = new LinkedHashMap<String,Integer>();
+		for (String part : s.split(",")) {
+			String[] kv = part.split("=");
+			if (kv.length != 2)
+				throw new IllegalArgumentException("Bad mix: " + s);
+			String type = kv[0].trim().toUpperCase();
+			if (!Arrays.asList(FileShareNode.QUERY, FileShareNode.LISTPEER, 
+					FileShareNode.INSERTPEER, FileShareNode.FILEGET).contains(type))
+				throw new IllegalArgumentException("Unknown request type: " + kv[0]);
+			int weight = Integer.parseInt(kv[1].trim());
+			if (weight > 0)
+				mix.put(type, weight);
+		}
+		if (mix.isEmpty())
+			throw new IllegalArgumentException("Empty mix: " + s);
+		return mix;
+	}
+}
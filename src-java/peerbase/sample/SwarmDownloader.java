@@ -0,0 +1,280 @@
+/*
+	File: SwarmDownloader.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+import peerbase.LoggerUtil;
+import peerbase.PeerInfo;
+import peerbase.PeerMessage;
+
+/**
+ * Downloads a file from several peers at once. The file is divided
+ * into segments, which are kept in a queue of work. Each peer holding
+ * the file is asked for one segment at a time with a ranged FSTR
+ * request, and is given the next segment in the queue as soon as it
+ * has delivered the last one, so faster peers end up serving a larger
+ * share of the file. If a transfer fails, the part of its segment that
+ * was not received is returned to the front of the queue for another
+ * peer (or the same one) to resume; a peer that fails repeatedly is
+ * dropped from the download, and so is, at once, a peer whose copy of
+ * the file has a different checksum from the one being downloaded.
+ * <p>
+ * The ranges received are recorded in a DownloadState, so a download
+ * that fails or is interrupted can later be resumed, fetching only the
+ * ranges that are still missing -- unless the file has changed since,
+ * in which case it is downloaded again from the start.
+ *
+ * @author PeerBase contributors
+ */
+public class SwarmDownloader {
+
+	private static final long SEGMENTSIZE = 1 << 20;   // bytes
+	private static final int MAXFAILURES = 3;          // per peer
+	private static final long SEGMENTTIMEOUT = 60000;  // milliseconds
+
+	private FileShareNode node;
+	private String filename;
+	private List<Source> sources;
+	private RandomAccessFile out;
+	private DownloadState state;
+	private long size;
+	private long crc;      // checksum of the whole file, or -1 if unknown
+
+	private LinkedList<long[]> ranges;   // [start, end) still to be fetched
+	private LinkedList<Source> idle;     // sources waiting for a range
+	private long remaining;              // bytes not yet written
+	private int active;                  // sources not dropped
+	private CompletableFuture<Long> done;
+
+
+	/**
+	 * @param node the node to send requests through
+	 * @param filename the name of the file to download
+	 * @param holders the peers holding the file
+	 */
+	public SwarmDownloader(FileShareNode node, String filename, 
+						   List<PeerInfo> holders) {
+		this.node = node;
+		this.filename = filename;
+		this.sources = new ArrayList<Source>();
+		for (PeerInfo pd : holders)
+			sources.add(new Source(pd));
+		this.size = -1;
+		this.crc = -1;
+		this.ranges = new LinkedList<long[]>();
+		this.idle = new LinkedList<Source>();
+		this.done = new CompletableFuture<Long>();
+	}
+
+
+	/**
+	 * Downloads the file into the given file, blocking until it is
+	 * complete. If a state file from an earlier, unfinished download of 
+	 * the same file is given, only the ranges it does not record as
+	 * received are fetched.
+	 *
+	 * @param out the file to write to
+	 * @param statefile the file in which to record the ranges received, 
+	 * or null
+	 * @return the size of the file
+	 * @throws IOException if the file could not be downloaded from any of
+	 * the peers; the state file then records the ranges that were received
+	 * @throws FileChunkWriter.NoHeaderException if no peer supports 
+	 * streaming transfers
+	 */
+	public long download(RandomAccessFile out, File statefile) 
+	throws IOException {
+		this.out = out;
+		size = probeSize();
+		state = DownloadState.load(statefile, size, crc);
+		out.setLength(size);
+		if (state.getCompleted() > 0)
+			LoggerUtil.getLogger().info("Resuming " + filename + " with " 
+					+ state.getCompleted() + " of " + size + " bytes");
+
+		synchronized (this) {
+			remaining = 0;
+			for (long[] missing : state.getMissing()) {
+				for (long start = missing[0]; start < missing[1]; start += SEGMENTSIZE)
+					ranges.add(new long[] { start, 
+							Math.min(missing[1], start + SEGMENTSIZE) });
+				remaining += missing[1] - missing[0];
+			}
+			if (remaining == 0)
+				return size;
+			active = sources.size();
+			for (Source src : sources)
+				requestNext(src);
+		}
+
+		try {
+			return done.join();
+		}
+		catch (CompletionException e) {
+			throw new IOException("Download of " + filename + " failed: " 
+								  + e.getCause());
+		}
+	}
+
+
+	/**
+	 * @return a summary of how much of the file was received from each peer
+	 */
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder("SwarmDownloader[" + filename);
+		for (Source src : sources)
+			sb.append(" " + src.pd + "=" + src.received);
+		return sb.append("]").toString();
+	}
+
+
+	/*
+	 * Asks the holders in turn for an empty range of the file, until one
+	 * of them replies with the header giving the size (and checksum) of
+	 * the file. Holders that do not have the file are dropped.
+	 */
+	private long probeSize() throws IOException {
+		IOException error = new IOException("No holders for " + filename);
+		for (Source src : new ArrayList<Source>(sources)) {
+			FileChunkWriter writer = new FileChunkWriter(out, 0, 0);
+			node.connectAndSendAsync(src.pd, 
+					new PeerMessage(FileShareNode.FILESTREAM, filename + " 0 0"),
+					writer, SEGMENTTIMEOUT);
+			try {
+				long size = writer.getFuture().join();
+				crc = writer.getFileCrc();
+				return size;
+			}
+			catch (CompletionException e) {
+				Throwable cause = e.getCause();
+				LoggerUtil.getLogger().fine("Dropping " + src.pd + ": " + cause);
+				error = cause instanceof IOException ? (IOException)cause 
+													 : new IOException(cause);
+				sources.remove(src);
+			}
+		}
+		throw error;
+	}
+
+
+	/*
+	 * Gives the source the next range in the queue, or leaves it idle if
+	 * there is none. Must be called while holding the lock.
+	 */
+	private void requestNext(final Source src) {
+		if (ranges.isEmpty()) {
+			idle.add(src);
+			return;
+		}
+
+		final long[] range = ranges.removeFirst();
+		final FileChunkWriter writer = new FileChunkWriter(out, range[0], 
+														   range[1] - range[0]);
+		writer.setExpectedCrc(crc);
+		String req = String.format("%s %d %d", filename, range[0], 
+								   range[1] - range[0]);
+		final long started = node.nanoTime();
+		writer.getFuture().whenComplete(new BiConsumer<Long,Throwable>() {
+			public void accept(Long result, Throwable error) {
+				node.getPeerScores().recordTransfer(src.pd.getId(), 
+						writer.getPosition() - range[0], node.nanoTime() - started);
+				rangeDone(src, range, writer, error);
+			}
+		});
+		node.connectAndSendAsync(src.pd, 
+				new PeerMessage(FileShareNode.FILESTREAM, req),
+				writer, SEGMENTTIMEOUT);
+	}
+
+
+	private synchronized void rangeDone(Source src, long[] range, 
+										FileChunkWriter writer, Throwable error) {
+		long received = writer.getPosition() - range[0];
+		src.received += received;
+		remaining -= received;
+		try {
+			// the data must be on disk before the state says it is there
+			out.getChannel().force(false);
+			state.markComplete(range[0], writer.getPosition());
+		}
+		catch (IOException e) {
+			LoggerUtil.getLogger().warning("Cannot save download state: " + e);
+		}
+
+		if (error != null) {
+			LoggerUtil.getLogger().fine("Range " + range[0] + "-" + range[1] 
+					+ " from " + src.pd + " failed at " + writer.getPosition() 
+					+ ": " + error);
+			// resume the rest of the range, from wherever it stopped
+			if (writer.getPosition() < range[1])
+				ranges.addFirst(new long[] { writer.getPosition(), range[1] });
+			// hand the rest to a source that has run out of work, if any
+			while (!ranges.isEmpty() && !idle.isEmpty())
+				requestNext(idle.removeFirst());
+			// a holder with a different version of the file is of no use
+			if (error instanceof FileChunkWriter.FileChangedException
+					|| ++src.failures >= MAXFAILURES) {
+				LoggerUtil.getLogger().info("Dropping " + src.pd + " from download: " 
+											+ error);
+				if (--active == 0)
+					done.completeExceptionally(new IOException("No holders left, " 
+							+ remaining + " bytes missing"));
+				return;
+			}
+		}
+
+		if (remaining == 0)
+			done.complete(size);
+		else
+			requestNext(src);
+	}
+
+
+	/*
+	 * A peer holding the file, and its record in this download.
+	 */
+	private static class Source {
+		private PeerInfo pd;
+		private long received;
+		private int failures;
+
+		public Source(PeerInfo pd) {
+			this.pd = pd;
+			this.received = 0;
+			this.failures = 0;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*
+	File: BufferSocketInterface.java
+	Copyright 2026 by the PeerBase contributors
+	
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for 
+	any special, indirect or consequential damages or any damages whatsoever 
+	resulting from loss of use, data or profits, whether in an action of 
+	contract, negligence or other tortious action, arising out of or in 
+	connection with the use or performance of this software, even if 
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An optional extension of the SocketInterface for sockets that can
+ * write a sequence of buffers directly, in the manner of a 
+ * GatheringByteChannel, so that a message header and its data can be
+ * sent without first being copied into a single array.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public interface BufferSocketInterface extends SocketInterface {
+
+	/**
+	 * Writes the remaining bytes of each of the given buffers, in order,
+	 * to this socket connection. As with write(byte[], int, int), the 
+	 * bytes may be held in a buffer until flush() is called. The buffers
+	 * are not modified, except possibly for their positions; they must 
+	 * not be modified by the caller until this method returns, or, if 
+	 * the socket holds on to them, until they have been flushed.
+	 * 
+	 * @param srcs the buffers to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write(ByteBuffer[] srcs) throws IOException;
+	
+}
@@ -0,0 +1,127 @@
+/*
+	File: ChannelSocket.java
+	Copyright 2026 by the PeerBase contributors
+	
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for 
+	any special, indirect or consequential damages or any damages whatsoever 
+	resulting from loss of use, data or profits, whether in an action of 
+	contract, negligence or other tortious action, arising out of or in 
+	connection with the use or performance of this software, even if 
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.socket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * A NormalSocket whose underlying Socket was opened through a blocking
+ * SocketChannel. In addition to the stream-based methods of NormalSocket,
+ * buffers too large for the output buffer are written with gathering 
+ * writes on the channel, and file regions are sent with 
+ * FileChannel.transferTo, so that the operating system copies the file
+ * data straight to the network.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class ChannelSocket extends NormalSocket implements ChannelSocketInterface {
+
+	private SocketChannel sc;
+	
+	
+	/**
+	 * Opens a socket channel and connects it to the specified port number 
+	 * on the named host.
+	 * 
+	 * @param host the host name
+	 * @param port the port number
+	 * @throws IOException if an I/O error occurs when creating the socket
+	 * @throws UnknownHostException if the IP address of the host could not be determined
+	 */
+	public ChannelSocket(String host, int port) 
+	throws IOException, UnknownHostException {
+		this(connect(host, port));
+	}
+	
+	
+	/**
+	 * Encapsulates an already-open socket channel, which must be in 
+	 * blocking mode.
+	 * 
+	 * @param sc the socket channel
+	 * @throws IOException
+	 */
+	public ChannelSocket(SocketChannel sc) 
+	throws IOException {
+		super(sc.socket());
+		if (!sc.isBlocking())
+			throw new IllegalArgumentException("Channel is in non-blocking mode");
+		this.sc = sc;
+	}
+	
+	
+	private static SocketChannel connect(String host, int port) 
+	throws IOException {
+		InetSocketAddress addr = new InetSocketAddress(host, port);
+		if (addr.isUnresolved())
+			throw new UnknownHostException(host);
+		return SocketChannel.open(addr);
+	}
+
+	
+	/* (non-Javadoc)
+	 * @see peerbase.BufferSocketInterface#write(java.nio.ByteBuffer[])
+	 */
+	public void write(ByteBuffer[] srcs) throws IOException {
+		long remaining = 0;
+		for (ByteBuffer src : srcs)
+			remaining += src.remaining();
+		if (remaining <= BUFFERSIZE) {
+			// small enough to go out with whatever else is buffered
+			super.write(srcs);
+			return;
+		}
+		flush();
+		while (remaining > 0)
+			remaining -= sc.write(srcs);
+	}
+
+	
+	/* (non-Javadoc)
+	 * @see peerbase.ChannelSocketInterface#transferFrom(java.nio.channels.FileChannel, long, long)
+	 */
+	public void transferFrom(FileChannel src, long position, long count) 
+	throws IOException {
+		flush();
+		while (count > 0) {
+			long n = src.transferTo(position, count, sc);
+			if (n == 0 && position >= src.size())
+				throw new EOFException("File ended " + count + " bytes early");
+			position += n;
+			count -= n;
+		}
+	}
+
+}
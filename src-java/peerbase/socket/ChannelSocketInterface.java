@@ -0,0 +1,59 @@
+/*
+	File: ChannelSocketInterface.java
+	Copyright 2026 by the PeerBase contributors
+	
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for 
+	any special, indirect or consequential damages or any damages whatsoever 
+	resulting from loss of use, data or profits, whether in an action of 
+	contract, negligence or other tortious action, arising out of or in 
+	connection with the use or performance of this software, even if 
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.socket;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * An optional extension of the SocketInterface for sockets backed by a
+ * channel, which can send a region of a file directly from the file
+ * system, in the manner of FileChannel.transferTo, without the data
+ * being read into memory first.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public interface ChannelSocketInterface extends BufferSocketInterface {
+
+	/**
+	 * Writes count bytes of the given file, starting at the given 
+	 * position, to this socket connection, after any bytes still held in 
+	 * the buffer of the socket. The position of the file channel is not 
+	 * changed. This method returns when all of the bytes
+	 * have been written, after which the caller may close the file.
+	 * 
+	 * @param src the file to send from
+	 * @param position the position in the file of the first byte to send
+	 * @param count the number of bytes to send
+	 * @throws IOException if an I/O error occurs, or if the file ends
+	 * before count bytes have been sent
+	 */
+	public void transferFrom(FileChannel src, long position, long count) 
+	throws IOException;
+	
+}
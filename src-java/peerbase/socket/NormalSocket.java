@@ -26,22 +26,31 @@
 
 package peerbase.socket;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 
 /**
  * Encapsulates the standard Socket object of the Java library
- * to fit the SocketInterface of the PeerBase system.
+ * to fit the SocketInterface of the PeerBase system. Both directions
+ * are buffered: a message header and its data are read with one system
+ * call when they arrive together, and are written with one when they 
+ * are flushed.
  * 
  * @author Nadeem Abdul Hamid
  *
  */
-public class NormalSocket implements SocketInterface {
+public class NormalSocket implements BufferSocketInterface {
 
+	static final int BUFFERSIZE = 8192;   // bytes, in each direction
+	
 	private Socket s;
 	private InputStream is;
 	private OutputStream os;
@@ -61,6 +70,41 @@ public class NormalSocket implements SocketInterface {
 	}
 	
 	
+	/**
+	 * Creates a stream socket and connects it to the specified port number 
+	 * on the named host, waiting at most the given time for the connection
+	 * to be established.
+	 * 
+	 * @param host the host name
+	 * @param port the port number
+	 * @param timeout the connect timeout in milliseconds (0 means no timeout)
+	 * @throws IOException if an I/O error occurs when creating the socket,
+	 * or the timeout expires
+	 * @throws UnknownHostException if the IP address of the host could not be determined
+	 */
+	public NormalSocket(String host, int port, int timeout) 
+	throws IOException, UnknownHostException {
+		this(connect(host, port, timeout));
+	}
+	
+	
+	private static Socket connect(String host, int port, int timeout) 
+	throws IOException {
+		InetSocketAddress addr = new InetSocketAddress(host, port);
+		if (addr.isUnresolved())
+			throw new UnknownHostException(host);
+		Socket socket = new Socket();
+		try {
+			socket.connect(addr, timeout);
+		}
+		catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+	
+	
 	/**
 	 * Encapsulates a normal Java API Socket object.
 	 * @param socket an already-open socket connection
@@ -69,8 +113,11 @@ public class NormalSocket implements SocketInterface {
 	public NormalSocket(Socket socket)
 	throws IOException {
 		s = socket;
-		is = s.getInputStream();
-		os = s.getOutputStream();		
+		// writes are gathered in the buffer and flushed whole, so Nagle's 
+		// algorithm would only hold back the last segment of each flush
+		s.setTcpNoDelay(true);
+		is = new BufferedInputStream(s.getInputStream(), BUFFERSIZE);
+		os = new BufferedOutputStream(s.getOutputStream(), BUFFERSIZE);
 	}
 	
 	
@@ -78,9 +125,12 @@ public class NormalSocket implements SocketInterface {
 	 * @see peerbase.SocketInterface#close()
 	 */
 	public void close() throws IOException {
-		is.close();
-		os.close();
-		s.close();
+		try {
+			os.flush();
+		}
+		finally {
+			s.close();
+		}
 	}
 
 	/* (non-Javadoc)
@@ -97,6 +147,20 @@ public class NormalSocket implements SocketInterface {
 		return is.read(b);
 	}
 
+	/* (non-Javadoc)
+	 * @see peerbase.SocketInterface#readFully(byte[], int, int)
+	 */
+	public int readFully(byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = is.read(b, off + total, len - total);
+			if (n < 0)
+				return total > 0 ? total : -1;
+			total += n;
+		}
+		return total;
+	}
+
 	/* (non-Javadoc)
 	 * @see peerbase.SocketInterface#write(byte[])
 	 */
@@ -105,4 +169,42 @@ public class NormalSocket implements SocketInterface {
 		os.flush();
 	}
 
+	/* (non-Javadoc)
+	 * @see peerbase.SocketInterface#write(byte[], int, int)
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		os.write(b, off, len);
+	}
+
+	/* (non-Javadoc)
+	 * @see peerbase.SocketInterface#flush()
+	 */
+	public void flush() throws IOException {
+		os.flush();
+	}
+
+	/* (non-Javadoc)
+	 * @see peerbase.BufferSocketInterface#write(java.nio.ByteBuffer[])
+	 */
+	public void write(ByteBuffer[] srcs) throws IOException {
+		byte[] chunk = null;
+		for (ByteBuffer src : srcs) {
+			if (src.hasArray()) {
+				os.write(src.array(), src.arrayOffset() + src.position(), 
+						 src.remaining());
+				src.position(src.limit());
+			}
+			else {
+				// direct or read-only buffer: copy through a small array
+				if (chunk == null) 
+					chunk = new byte[BUFFERSIZE];
+				while (src.hasRemaining()) {
+					int n = Math.min(src.remaining(), chunk.length);
+					src.get(chunk, 0, n);
+					os.write(chunk, 0, n);
+				}
+			}
+		}
+	}
+
 }
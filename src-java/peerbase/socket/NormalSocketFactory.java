@@ -36,8 +36,17 @@ public class NormalSocketFactory extends SocketFactory {
 		return new NormalSocket(host, port);
 	}
 
+	@Override
+	public SocketInterface makeSocket(String host, int port, int timeout) 
+	throws IOException, UnknownHostException {
+		return new NormalSocket(host, port, timeout);
+	}
+
 	@Override
 	public SocketInterface makeSocket(Socket socket) throws IOException {
+		// sockets accepted from a ServerSocketChannel can send files directly
+		if (socket.getChannel() != null)
+			return new ChannelSocket(socket.getChannel());
 		return new NormalSocket(socket);
 	}
 
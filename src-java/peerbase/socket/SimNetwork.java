@@ -0,0 +1,684 @@
+/*
+	File: SimNetwork.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.socket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import peerbase.LoggerUtil;
+import peerbase.Node;
+import peerbase.TaskExecutor;
+
+/**
+ * An in-memory network on which many Nodes can be run in one process,
+ * by a simulated clock, with no real sockets. Each link between two 
+ * addresses has a latency, a bandwidth and a rate of loss, which 
+ * determine when the data written to a SimSocket arrives at the other
+ * end. The network is a discrete-event simulation: connection requests,
+ * data, and the runs of timers are events in a queue, and the clock 
+ * jumps from one event to the next as soon as every thread of the 
+ * simulated nodes is waiting, so that a simulation with long latencies
+ * and stabilizer intervals runs much faster than real time.
+ * <p>
+ * A node joins the network through attach(), which gives it an executor 
+ * whose threads the simulation keeps track of, and a timer and a clock
+ * (see Node.setClock) working by the simulated clock; the node's 
+ * mainLoop is not used. The network's
+ * socket factory must be installed for outgoing connections to use it.
+ * For example:
+ * <pre>
+ *   SimNetwork net = new SimNetwork(new SimNetwork.Link(20, 1000000, 0.001));
+ *   SocketFactory.setSocketFactory(net.getSocketFactory());
+ *   for (int i = 0; i &lt; 10000; i++) {
+ *       nodes[i] = new Node(8, new PeerInfo("sim", i));
+ *       net.attach(nodes[i]);
+ *   }
+ *   net.schedule(nodes[1], 0, new Runnable() { ... });
+ *   net.run(600000);   // ten simulated minutes
+ * </pre>
+ * Connections may only be opened, and replies waited for, by tasks of 
+ * attached nodes, while run() is in progress; a thread outside the 
+ * simulation that does so waits until run() is next called.
+ * <p>
+ * The model is a simplification of TCP: a connection is established 
+ * after one round trip, each link direction sends one write at a time 
+ * at its bandwidth, and a lost segment delays the rest of its stream by
+ * a retransmission timeout. Writes never block. Threads waiting on 
+ * other threads (for example in CountDownLatch.await) are recognized as
+ * waiting. Stabilizer schedules, request timeouts, the connection pool,
+ * the expiry of seen queries and DHT records, and measured round-trip 
+ * times and throughputs all follow the simulated clock through the 
+ * node's timer and clock; code that reads the system clock directly 
+ * sees real time instead.
+ * <p>
+ * Whether the simulation is idle is judged from the states of its 
+ * threads, so work that waits on something other than this network, 
+ * its timers or other threads is misjudged. A thread blocked in real 
+ * I/O, on a file or a real socket, looks busy and holds the clock back
+ * until it returns. A thread in a real Thread.sleep, or a wait timed by
+ * the system clock, looks idle, so the clock may move on meanwhile and
+ * the work after it happens at a later simulated time than intended. If
+ * the threads have not all settled within the idle timeout (see 
+ * setIdleTimeout), run() fails with an IllegalStateException naming the
+ * threads still busy, rather than hanging.
+ *
+ * @author PeerBase contributors
+ */
+public class SimNetwork {
+	
+	/** The address of connections opened by threads outside any node. */
+	public static final String EXTERNAL = "external:0";
+	
+	static final int SEGMENTSIZE = 1460;          // bytes
+	static final long MINRTO = 200000000L;        // nanoseconds
+	static final long SYNRTO = 1000000000L;       // nanoseconds
+	static final int SYNRETRIES = 5;
+	private static final long STACKSIZE = 256 * 1024;
+	
+	
+	/**
+	 * The properties of the link from one address to another.
+	 */
+	public static class Link {
+		private long latency;     // nanoseconds, one way
+		private long bandwidth;   // bytes per second, or 0 for no limit
+		private double loss;      // probability of losing each segment
+		
+		/**
+		 * @param latency the one-way delay, in milliseconds
+		 * @param bandwidth the bandwidth in bytes per second, or 0 for no limit
+		 * @param loss the probability of each segment sent being lost, 
+		 * from 0 up to but not including 1
+		 */
+		public Link(double latency, long bandwidth, double loss) {
+			if (latency < 0 || bandwidth < 0 || loss < 0 || loss >= 1)
+				throw new IllegalArgumentException("Bad link: " + latency + " ms, "
+						+ bandwidth + " B/s, loss " + loss);
+			this.latency = (long)(latency * 1000000);
+			this.bandwidth = bandwidth;
+			this.loss = loss;
+		}
+		
+		public double getLatency() {
+			return latency / 1e6;
+		}
+		
+		public long getBandwidth() {
+			return bandwidth;
+		}
+		
+		public double getLoss() {
+			return loss;
+		}
+		
+		public String toString() {
+			return String.format("Link[%.3f ms, %d B/s, loss %.4f]", 
+								 getLatency(), bandwidth, loss);
+		}
+	}
+	
+	
+	/*
+	 * An action to be carried out at a given simulated time, in the 
+	 * context of the node with the given address.
+	 */
+	private static class Event implements Comparable<Event> {
+		long time;
+		long seq;
+		String address;
+		Runnable action;
+		
+		public int compareTo(Event e) {
+			if (time != e.time)
+				return time < e.time ? -1 : 1;
+			return seq < e.seq ? -1 : seq > e.seq ? 1 : 0;
+		}
+	}
+	
+	
+	/**
+	 * A condition on which the threads of the simulation wait for events.
+	 * Both methods must be called with the monitor of the condition held.
+	 * A thread waiting here is known to be idle; when it is woken, the 
+	 * clock does not move on until it is running again.
+	 */
+	class Condition {
+		private int tracked;   // threads of the simulation waiting
+		private int credits;   // of those, already counted as waking up
+		
+		void await() throws IOException {
+			Thread self = Thread.currentThread();
+			if (self == scheduler)
+				throw new IOException("Blocking call in a simulation event");
+			boolean t = running.remove(self);
+			if (t)
+				tracked++;
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted");
+			}
+			finally {
+				if (t) {
+					tracked--;
+					running.add(self);
+					changes.incrementAndGet();
+					if (credits > 0) {
+						credits--;
+						waking.decrementAndGet();
+					}
+				}
+			}
+		}
+		
+		void signal() {
+			int n = tracked - credits;
+			if (n > 0) {
+				credits += n;
+				waking.addAndGet(n);
+				changes.incrementAndGet();
+			}
+			notifyAll();
+		}
+	}
+	
+	
+	private volatile long now;   // simulated time, nanoseconds
+	private PriorityQueue<Event> events;
+	private long sequence;
+	private volatile Thread scheduler;   // the thread in run(), if any
+	
+	private Random random;
+	private Link defaultLink;
+	private ConcurrentHashMap<String,Link> links;
+	private ConcurrentHashMap<String,long[]> busyUntil;   // per link direction
+	private ConcurrentHashMap<String,Node> listeners;
+	private SimSocketFactory factory;
+	
+	private ThreadLocal<String> context;   // address of the node of a thread
+	private Set<Thread> running;    // threads of the simulation not in await()
+	private AtomicInteger waking;   // threads started or woken, not yet running
+	private AtomicLong changes;     // to detect threads waking during a check
+	private volatile long idleTimeout;   // milliseconds of real time
+	
+	
+	/**
+	 * Creates a network whose links all have the given properties, unless
+	 * set otherwise with setLink.
+	 * @param defaultLink the properties of the links
+	 */
+	public SimNetwork(Link defaultLink) {
+		this.now = 0;
+		this.events = new PriorityQueue<Event>();
+		this.sequence = 0;
+		this.scheduler = null;
+		this.random = new Random();
+		this.defaultLink = defaultLink;
+		this.links = new ConcurrentHashMap<String,Link>();
+		this.busyUntil = new ConcurrentHashMap<String,long[]>();
+		this.listeners = new ConcurrentHashMap<String,Node>();
+		this.factory = new SimSocketFactory(this);
+		this.context = new ThreadLocal<String>();
+		this.running = ConcurrentHashMap.newKeySet();
+		this.waking = new AtomicInteger(0);
+		this.changes = new AtomicLong(0);
+		this.idleTimeout = 60000;
+	}
+	
+	
+	/**
+	 * @return the socket factory opening connections on this network
+	 */
+	public SocketFactory getSocketFactory() {
+		return factory;
+	}
+	
+	
+	/**
+	 * Seeds the random numbers deciding which segments are lost. The 
+	 * simulation is still not deterministic, as it depends on the 
+	 * scheduling of threads.
+	 * @param seed the seed
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed);
+	}
+	
+	
+	/**
+	 * Sets the real time that run() waits for the threads of the 
+	 * simulation to settle before the clock moves on, after which it 
+	 * gives up with an IllegalStateException. The default is one minute.
+	 * @param millis the timeout in milliseconds, or 0 to wait indefinitely
+	 */
+	public void setIdleTimeout(long millis) {
+		this.idleTimeout = millis;
+	}
+	
+	
+	public void setDefaultLink(Link link) {
+		this.defaultLink = link;
+	}
+	
+	
+	/**
+	 * Sets the properties of the link between two addresses, in both 
+	 * directions.
+	 * @param a an address, as "host:port"
+	 * @param b another address
+	 * @param link the properties of the link
+	 */
+	public void setLink(String a, String b, Link link) {
+		links.put(a + " " + b, link);
+		links.put(b + " " + a, link);
+	}
+	
+	
+	/**
+	 * Returns the properties of the link from one address to another.
+	 * Subclasses may override this to compute them, for example from the
+	 * positions of the nodes, instead of storing them for every pair.
+	 * @param from the sending address, as "host:port"
+	 * @param to the receiving address
+	 * @return the properties of the link
+	 */
+	protected Link getLink(String from, String to) {
+		Link link = links.get(from + " " + to);
+		return link != null ? link : defaultLink;
+	}
+	
+	
+	/**
+	 * @return the simulated time, in milliseconds since the network was
+	 * created
+	 */
+	public long currentTimeMillis() {
+		return now / 1000000;
+	}
+	
+	
+	/**
+	 * @return the simulated time, in nanoseconds since the network was
+	 * created
+	 */
+	public long nanoTime() {
+		return now;
+	}
+	
+	
+	/**
+	 * Adds a node to the network, listening at its host and port. The 
+	 * node's executors are replaced by one whose threads are tracked by
+	 * the simulation, and its timer and clock by ones working by the
+	 * simulated clock.
+	 * @param node the node
+	 */
+	public void attach(Node node) {
+		String address = node.getHost() + ":" + node.getPort();
+		TaskExecutor executor = TaskExecutor.newThreadPerTask(threadFactory(address));
+		node.setExecutor(executor);
+		node.setIoExecutor(executor);
+		node.setTimer(new SimTimer(this, address));
+		node.setClock(new LongSupplier() {
+			public long getAsLong() { return nanoTime(); }
+		});
+		listeners.put(address, node);
+	}
+	
+	
+	/**
+	 * Removes a node from the network and shuts it down. Connections to 
+	 * its address are refused from then on; connections already open are
+	 * not affected.
+	 * @param node the node
+	 */
+	public void detach(Node node) {
+		listeners.remove(node.getHost() + ":" + node.getPort());
+		node.shutdown();
+	}
+	
+	
+	/**
+	 * Runs a task of a node, as a task of its executor, after the given
+	 * simulated delay.
+	 * @param node the node, which must be attached
+	 * @param delay the delay in milliseconds
+	 * @param task the task
+	 */
+	public void schedule(final Node node, long delay, final Runnable task) {
+		schedule(now + delay * 1000000, node.getHost() + ":" + node.getPort(), 
+				 new Runnable() {
+			public void run() {
+				node.getExecutor().execute(task);
+			}
+		});
+	}
+	
+	
+	/**
+	 * Runs the simulation until the given simulated time has passed. 
+	 * Events are carried out in order of time; before the clock moves on 
+	 * to a later time, this method waits until every thread of the 
+	 * simulation is waiting, either for another event or for another 
+	 * thread. Only one thread may run the simulation at a time.
+	 * @param millis the simulated time to run for, in milliseconds
+	 * @throws IllegalStateException if the threads of the simulation do
+	 * not settle within the idle timeout
+	 */
+	public void run(long millis) {
+		synchronized (this) {
+			if (scheduler != null)
+				throw new IllegalStateException("Simulation already running");
+			scheduler = Thread.currentThread();
+		}
+		long end = now + millis * 1000000;
+		try {
+			while (true) {
+				Event e;
+				synchronized (events) {
+					e = events.peek();
+				}
+				if (e == null || e.time > now) {
+					// let the effects of the events so far play out
+					awaitIdle();
+					synchronized (events) {
+						e = events.peek();
+					}
+					if (e == null || e.time > end) {
+						now = Math.max(now, end);
+						return;
+					}
+					now = Math.max(now, e.time);
+				}
+				synchronized (events) {
+					events.poll();
+				}
+				context.set(e.address);
+				try {
+					e.action.run();
+				}
+				catch (RuntimeException ex) {
+					LoggerUtil.getLogger().warning("Simulation event failed: " + ex);
+				}
+				finally {
+					context.remove();
+				}
+			}
+		}
+		finally {
+			scheduler = null;
+		}
+	}
+	
+	
+	/*
+	 * Adds an event to the queue, to be run at the given time.
+	 */
+	void schedule(long time, String address, Runnable action) {
+		Event e = new Event();
+		e.time = time;
+		e.address = address;
+		e.action = action;
+		synchronized (events) {
+			e.seq = sequence++;
+			events.add(e);
+		}
+	}
+	
+	
+	/*
+	 * Returns a thread factory for the executor of the node with the given
+	 * address. Each thread is counted as running from the moment it is 
+	 * created until its task ends.
+	 */
+	private ThreadFactory threadFactory(final String address) {
+		return new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				waking.incrementAndGet();
+				changes.incrementAndGet();
+				Thread t = new Thread(null, new Runnable() {
+					public void run() {
+						Thread self = Thread.currentThread();
+						running.add(self);
+						waking.decrementAndGet();
+						context.set(address);
+						try {
+							r.run();
+						}
+						finally {
+							running.remove(self);
+						}
+					}
+				}, "SimNetwork-" + address, STACKSIZE);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+	
+	
+	/*
+	 * Waits until every thread of the simulation is waiting. Checks twice
+	 * in a row, as a thread may wait briefly inside library code. Fails 
+	 * once the idle timeout has passed, naming the threads still busy.
+	 */
+	private void awaitIdle() {
+		int spins = 0;
+		long start = System.nanoTime();
+		while (!idle() || !idle()) {
+			if (++spins < 64) {
+				Thread.yield();
+				continue;
+			}
+			LockSupport.parkNanos(20000);
+			if (idleTimeout > 0 
+					&& System.nanoTime() - start > idleTimeout * 1000000L)
+				throw new IllegalStateException("Simulation not idle after " 
+						+ idleTimeout + " ms at simulated time " + now / 1000000 
+						+ " ms: " + busyThreads());
+		}
+	}
+	
+	
+	/*
+	 * Describes the threads keeping the simulation from being idle.
+	 */
+	private String busyThreads() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(waking.get()).append(" waking");
+		for (Thread t : running) {
+			Thread.State state = t.getState();
+			if (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING
+					|| state == Thread.State.TERMINATED)
+				continue;
+			StackTraceElement[] stack = t.getStackTrace();
+			sb.append("; ").append(t.getName()).append(' ').append(state);
+			if (stack.length > 0)
+				sb.append(" at ").append(stack[0]);
+		}
+		return sb.toString();
+	}
+	
+	
+	private boolean idle() {
+		long version = changes.get();
+		if (waking.get() > 0)
+			return false;
+		for (Thread t : running) {
+			Thread.State state = t.getState();
+			if (state != Thread.State.WAITING && state != Thread.State.TIMED_WAITING
+					&& state != Thread.State.TERMINATED)
+				return false;
+		}
+		return waking.get() == 0 && changes.get() == version;
+	}
+	
+	
+	/*
+	 * Opens a connection from the node of the calling thread to the given
+	 * address: the request arrives after the latency of the link, or later
+	 * if it or its answer is lost, and the connection is established after
+	 * a round trip. Called by the socket factory.
+	 */
+	SimSocket connect(String host, int port, int timeout) throws IOException {
+		String local = context.get();
+		if (local == null)
+			local = EXTERNAL;
+		final String remote = host + ":" + port;
+		Link link = getLink(local, remote);
+		final Link back = getLink(remote, local);
+		final SimSocket client = new SimSocket(this, local, remote, link);
+		
+		long delay = 0;
+		long rto = SYNRTO;
+		int attempts = 0;
+		while (lost(link) || lost(back)) {
+			if (++attempts > SYNRETRIES) {
+				delay = -1;
+				break;
+			}
+			delay += rto;
+			rto *= 2;
+		}
+		long deadline = timeout > 0 ? now + timeout * 1000000L : Long.MAX_VALUE;
+		
+		if (delay < 0) {
+			schedule(Math.min(deadline, now + SYNRTO * 63), local, new Runnable() {
+				public void run() {
+					client.failed(new SocketTimeoutException("Connection timed out"));
+				}
+			});
+		}
+		else {
+			final String from = local;
+			schedule(now + delay + link.latency, remote, new Runnable() {
+				public void run() {
+					accept(client, remote, from, back);
+				}
+			});
+		}
+		if (deadline != Long.MAX_VALUE) {
+			schedule(deadline, local, new Runnable() {
+				public void run() {
+					client.failed(new SocketTimeoutException("connect timed out"));
+				}
+			});
+		}
+		
+		client.awaitConnected();
+		return client;
+	}
+	
+	
+	/*
+	 * Carried out when a connection request arrives at its destination.
+	 */
+	private void accept(final SimSocket client, String address, String from, 
+						Link back) {
+		Node node = listeners.get(address);
+		if (node == null) {
+			schedule(now + back.latency, from, new Runnable() {
+				public void run() {
+					client.failed(new ConnectException("Connection refused"));
+				}
+			});
+			return;
+		}
+		SimSocket server = new SimSocket(this, address, from, back);
+		if (!client.connect(server))
+			return;   // the client has given up
+		schedule(now + back.latency, from, new Runnable() {
+			public void run() {
+				client.established();
+			}
+		});
+		node.handleConnection(server);
+	}
+	
+	
+	/*
+	 * Returns the time at which a write of the given size from one address
+	 * to another arrives, if it is sent now: when the link direction is 
+	 * free, plus the time to send it at the link's bandwidth, plus the 
+	 * latency, plus a retransmission timeout for every segment lost.
+	 */
+	long transmit(String from, String to, Link link, int bytes) {
+		long start = now;
+		long send = link.bandwidth > 0 ? bytes * 1000000000L / link.bandwidth : 0;
+		long[] busy = busyUntil.get(from + " " + to);
+		if (busy == null) {
+			long[] created = new long[1];
+			busy = busyUntil.putIfAbsent(from + " " + to, created);
+			if (busy == null)
+				busy = created;
+		}
+		synchronized (busy) {
+			start = Math.max(start, busy[0]);
+			busy[0] = start + send;
+		}
+		long arrival = start + send + link.latency;
+		
+		if (link.loss > 0) {
+			long rto = Math.max(MINRTO, 4 * link.latency);
+			for (int segments = (bytes + SEGMENTSIZE - 1) / SEGMENTSIZE; 
+				 segments > 0; segments--)
+				while (lost(link))
+					arrival += rto;
+		}
+		return arrival;
+	}
+	
+	
+	private boolean lost(Link link) {
+		return link.loss > 0 && random.nextDouble() < link.loss;
+	}
+	
+	
+	Condition newCondition() {
+		return new Condition();
+	}
+	
+	
+	public String toString() {
+		return String.format("SimNetwork[t=%d ms, %d nodes, %d threads running]", 
+							 currentTimeMillis(), listeners.size(), running.size());
+	}
+}
@@ -0,0 +1,302 @@
+/*
+	File: SimSocket.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.socket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+
+/**
+ * One end of a connection on a SimNetwork. The data written to it 
+ * arrives at the other end at the simulated time determined by the 
+ * link between the two addresses, and is read there as from a normal
+ * stream socket. The bytes written between two flushes are sent as one
+ * transmission.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class SimSocket implements SocketInterface {
+	
+	private static final int CONNECTING = 0;
+	private static final int OPEN = 1;
+	private static final int FAILED = 2;
+	
+	private SimNetwork network;
+	private String local, remote;
+	private SimNetwork.Link link;   // from this end to the other
+	private SimNetwork.Condition cond;   // guards all of the following
+	
+	private SimSocket peer;
+	private int state;
+	private IOException failure;
+	private boolean closed;
+	private long lastArrival;   // of the data sent, which arrives in order
+	private ByteArrayOutputStream outbound;   // written, not yet flushed
+	
+	private ArrayDeque<byte[]> inbound;
+	private int offset;         // into the first inbound chunk
+	private boolean eof;        // the other end has closed
+	
+	
+	SimSocket(SimNetwork network, String local, String remote, 
+			  SimNetwork.Link link) {
+		this.network = network;
+		this.local = local;
+		this.remote = remote;
+		this.link = link;
+		this.cond = network.newCondition();
+		this.peer = null;
+		this.state = CONNECTING;
+		this.failure = null;
+		this.closed = false;
+		this.lastArrival = 0;
+		this.outbound = new ByteArrayOutputStream();
+		this.inbound = new ArrayDeque<byte[]>();
+		this.offset = 0;
+		this.eof = false;
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see peerbase.SocketInterface#write(byte[])
+	 */
+	public void write(byte[] b) throws IOException {
+		synchronized (cond) {
+			write(b, 0, b.length);
+			flush();
+		}
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see peerbase.SocketInterface#write(byte[], int, int)
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		synchronized (cond) {
+			if (closed)
+				throw new SocketException("Socket closed");
+			outbound.write(b, off, len);
+		}
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see peerbase.SocketInterface#flush()
+	 */
+	public void flush() throws IOException {
+		synchronized (cond) {
+			if (closed)
+				throw new SocketException("Socket closed");
+			if (outbound.size() == 0)
+				return;
+			final byte[] data = outbound.toByteArray();
+			outbound.reset();
+			final SimSocket dest = peer;
+			lastArrival = Math.max(lastArrival, 
+					network.transmit(local, remote, link, data.length));
+			network.schedule(lastArrival, remote, new Runnable() {
+				public void run() {
+					dest.deliver(data);
+				}
+			});
+		}
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see peerbase.SocketInterface#read()
+	 */
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b) < 0 ? -1 : b[0] & 0xff;
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see peerbase.SocketInterface#read(byte[])
+	 */
+	public int read(byte[] b) throws IOException {
+		if (b.length == 0)
+			return 0;
+		synchronized (cond) {
+			while (inbound.isEmpty() && !eof && !closed)
+				cond.await();
+			if (closed)
+				throw new SocketException("Socket closed");
+			int n = 0;
+			while (n < b.length && !inbound.isEmpty()) {
+				byte[] chunk = inbound.peek();
+				int k = Math.min(b.length - n, chunk.length - offset);
+				System.arraycopy(chunk, offset, b, n, k);
+				n += k;
+				offset += k;
+				if (offset == chunk.length) {
+					inbound.poll();
+					offset = 0;
+				}
+			}
+			return n > 0 ? n : -1;
+		}
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see peerbase.SocketInterface#readFully(byte[], int, int)
+	 */
+	public int readFully(byte[] b, int off, int len) throws IOException {
+		synchronized (cond) {
+			int total = 0;
+			while (total < len) {
+				while (inbound.isEmpty() && !eof && !closed)
+					cond.await();
+				if (closed)
+					throw new SocketException("Socket closed");
+				if (inbound.isEmpty())
+					return total > 0 ? total : -1;
+				byte[] chunk = inbound.peek();
+				int k = Math.min(len - total, chunk.length - offset);
+				System.arraycopy(chunk, offset, b, off + total, k);
+				total += k;
+				offset += k;
+				if (offset == chunk.length) {
+					inbound.poll();
+					offset = 0;
+				}
+			}
+			return total;
+		}
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see peerbase.SocketInterface#close()
+	 */
+	public void close() throws IOException {
+		synchronized (cond) {
+			if (closed)
+				return;
+			if (peer != null)
+				flush();
+			closed = true;
+			inbound.clear();
+			cond.signal();
+			if (peer != null)
+				sendEof();
+		}
+	}
+	
+	
+	/*
+	 * Tells the other end that this one has closed, after the last of the
+	 * data sent has arrived. Called with the condition held.
+	 */
+	private void sendEof() {
+		final SimSocket dest = peer;
+		lastArrival = Math.max(lastArrival, 
+				network.nanoTime() + (long)(link.getLatency() * 1000000));
+		network.schedule(lastArrival, remote, new Runnable() {
+			public void run() {
+				dest.deliverEof();
+			}
+		});
+	}
+	
+	
+	/*
+	 * Pairs this connecting end with the accepting end of the connection,
+	 * returning false if this end has already given up.
+	 */
+	boolean connect(SimSocket server) {
+		synchronized (cond) {
+			if (state != CONNECTING)
+				return false;
+			peer = server;
+			server.peer = this;
+			server.state = OPEN;
+			return true;
+		}
+	}
+	
+	
+	void established() {
+		synchronized (cond) {
+			if (state != CONNECTING)
+				return;
+			state = OPEN;
+			cond.signal();
+		}
+	}
+	
+	
+	void failed(IOException e) {
+		synchronized (cond) {
+			if (state != CONNECTING)
+				return;
+			state = FAILED;
+			failure = e;
+			closed = true;
+			if (peer != null)
+				sendEof();   // accepted, but not known to be yet
+			cond.signal();
+		}
+	}
+	
+	
+	void awaitConnected() throws IOException {
+		synchronized (cond) {
+			while (state == CONNECTING)
+				cond.await();
+			if (state == FAILED)
+				throw failure;
+		}
+	}
+	
+	
+	private void deliver(byte[] data) {
+		synchronized (cond) {
+			if (closed)
+				return;
+			inbound.add(data);
+			cond.signal();
+		}
+	}
+	
+	
+	private void deliverEof() {
+		synchronized (cond) {
+			eof = true;
+			cond.signal();
+		}
+	}
+	
+	
+	public String toString() {
+		return "SimSocket[" + local + " -> " + remote + "]";
+	}
+}
@@ -0,0 +1,70 @@
+/*
+	File: SimSocketFactory.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.socket;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+/**
+ * The factory of the sockets of a SimNetwork, obtained through
+ * SimNetwork.getSocketFactory. Connections opened by host and port are
+ * simulated; real sockets, accepted by the main loop of a node that is
+ * not attached to the network, are encapsulated as usual.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class SimSocketFactory extends SocketFactory {
+
+	private SimNetwork network;
+	private SocketFactory normal;
+	
+	
+	SimSocketFactory(SimNetwork network) {
+		this.network = network;
+		this.normal = new NormalSocketFactory();
+	}
+	
+	
+	public SocketInterface makeSocket(String host, int port) 
+	throws IOException, UnknownHostException {
+		return network.connect(host, port, 0);
+	}
+
+	@Override
+	public SocketInterface makeSocket(String host, int port, int timeout) 
+	throws IOException, UnknownHostException {
+		return network.connect(host, port, timeout);
+	}
+
+	@Override
+	public SocketInterface makeSocket(Socket socket) throws IOException {
+		return normal.makeSocket(socket);
+	}
+
+}
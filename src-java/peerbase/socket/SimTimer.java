@@ -0,0 +1,172 @@
+/*
+	File: SimTimer.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.socket;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A ScheduledExecutorService working by the clock of a SimNetwork. Tasks
+ * are run as events of the simulation, on the thread running it, in the
+ * context of the node with the given address; like the tasks of a 
+ * single timer thread, they should be short and must not block.
+ */
+class SimTimer extends AbstractExecutorService 
+implements ScheduledExecutorService {
+
+	private SimNetwork network;
+	private String address;
+	private volatile boolean shutdown;
+	
+	
+	/*
+	 * A task to be run at a simulated time, and then periodically if its 
+	 * period is positive (fixed rate) or negative (fixed delay).
+	 */
+	private class Task<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+		private long time;     // nanoseconds
+		private long period;   // nanoseconds
+		
+		public Task(Callable<V> callable, long time) {
+			super(callable);
+			this.time = time;
+			this.period = 0;
+		}
+		
+		public Task(Runnable task, long time, long period) {
+			super(task, null);
+			this.time = time;
+			this.period = period;
+		}
+		
+		public boolean isPeriodic() {
+			return period != 0;
+		}
+		
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - network.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		
+		public int compareTo(Delayed o) {
+			long d = getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+			return d < 0 ? -1 : d > 0 ? 1 : 0;
+		}
+		
+		public void run() {
+			if (shutdown) {
+				cancel(false);
+				return;
+			}
+			if (!isPeriodic()) 
+				super.run();
+			else if (runAndReset()) {
+				time = period > 0 ? time + period : network.nanoTime() - period;
+				submit(this);
+			}
+		}
+	}
+	
+	
+	public SimTimer(SimNetwork network, String address) {
+		this.network = network;
+		this.address = address;
+		this.shutdown = false;
+	}
+	
+	
+	private <V> Task<V> submit(Task<V> task) {
+		if (shutdown)
+			throw new RejectedExecutionException("Timer shut down");
+		network.schedule(task.time, address, task);
+		return task;
+	}
+	
+	
+	private long at(long delay, TimeUnit unit) {
+		return network.nanoTime() + Math.max(0, unit.toNanos(delay));
+	}
+	
+	
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		return submit(new Task<Object>(command, at(delay, unit), 0));
+	}
+	
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, 
+										   TimeUnit unit) {
+		return submit(new Task<V>(callable, at(delay, unit)));
+	}
+	
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, 
+			long initialDelay, long period, TimeUnit unit) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Period must be positive");
+		return submit(new Task<Object>(command, at(initialDelay, unit), 
+									   unit.toNanos(period)));
+	}
+	
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, 
+			long initialDelay, long delay, TimeUnit unit) {
+		if (delay <= 0)
+			throw new IllegalArgumentException("Delay must be positive");
+		return submit(new Task<Object>(command, at(initialDelay, unit), 
+									   -unit.toNanos(delay)));
+	}
+	
+	public void execute(Runnable command) {
+		schedule(command, 0, TimeUnit.NANOSECONDS);
+	}
+	
+	public void shutdown() {
+		shutdown = true;
+	}
+	
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		return Collections.emptyList();
+	}
+	
+	public boolean isShutdown() {
+		return shutdown;
+	}
+	
+	public boolean isTerminated() {
+		return shutdown;
+	}
+	
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+		return shutdown;
+	}
+}
@@ -64,6 +64,23 @@ public abstract class SocketFactory {
 	 */
 	public abstract SocketInterface makeSocket(String host, int port) throws IOException, UnknownHostException;
 	
+	/**
+	 * Constructs a new socket object, as makeSocket(host, port), but 
+	 * giving up if the connection cannot be established within the given
+	 * time. Factories that do not override this method ignore the timeout.
+	 * 
+	 * @param host the host name
+	 * @param port the port number
+	 * @param timeout the connect timeout in milliseconds (0 means no timeout)
+	 * @return a socket connection object
+	 * @throws IOException if an I/O error occurs, or the timeout expires
+	 * @throws UnknownHostException 
+	 */
+	public SocketInterface makeSocket(String host, int port, int timeout) 
+	throws IOException, UnknownHostException {
+		return makeSocket(host, port);
+	}
+	
 	/**
 	 * Constructs a new SocketInterface object, encapsulating a standard Java 
 	 * API Socket object.
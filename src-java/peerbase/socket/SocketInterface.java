@@ -39,7 +39,8 @@ import java.io.IOException;
 public interface SocketInterface {
 
 	/** Writes b.length bytes from the specified byte array to this 
-	 * socket connection. 
+	 * socket connection, and flushes them along with any bytes written
+	 * before. 
 	 * 
 	 * @param b the data
 	 * @throws IOException if an I/O error occurs
@@ -47,6 +48,29 @@ public interface SocketInterface {
 	public void write(byte[] b) throws IOException;
 	
 	
+	/** Writes len bytes from the specified byte array, starting at offset
+	 * off, to this socket connection, without necessarily sending them: 
+	 * they may be held in a buffer until flush() or write(byte[]) is 
+	 * called, or the socket is closed, so that several small writes go 
+	 * out together.
+	 * 
+	 * @param b the data
+	 * @param off the start offset in the data
+	 * @param len the number of bytes to write
+	 * @throws IOException if an I/O error occurs
+	 **/
+	public void write(byte[] b, int off, int len) throws IOException;
+	
+	
+	/**
+	 * Sends any bytes written to this socket connection that are still
+	 * held in its buffer.
+	 * 
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void flush() throws IOException;
+	
+	
 	/**
 	 * Reads the next byte of data from the socket connection. The value 
 	 * byte is returned as an int in the range 0 to 255. If no byte 
@@ -77,6 +101,23 @@ public interface SocketInterface {
 	public int read(byte[] b) throws IOException;
 	
 	
+	/**
+	 * Reads len bytes from the socket connection into the buffer array b,
+	 * starting at offset off. Unlike read(byte[]), this method blocks 
+	 * until all of the bytes have been read, however many segments they 
+	 * arrive in, or the end of the input is reached.
+	 * 
+	 * @param b the buffer into which the data is read
+	 * @param off the start offset in the buffer
+	 * @param len the number of bytes to read
+	 * @return the number of bytes read, which is less than len only if the
+	 * end of the input was reached, or -1 if the end of the input was 
+	 * reached before any byte
+	 * @throws IOException if an I/O error occurs
+	 */
+	public int readFully(byte[] b, int off, int len) throws IOException;
+	
+	
 	/**
 	 * Closes this connection and releases any system resources 
 	 * associated with the socket.
@@ -0,0 +1,346 @@
+/*
+	File: DhtIndex.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import peerbase.*;
+
+/**
+ * A distributed index mapping string keys to sets of string values, 
+ * stored on the peers of a Kademlia overlay. The values of a key are 
+ * held by the REPLICAS peers whose ids are closest to the key's hash
+ * (see KademliaRouter.keyOf), so that storing or retrieving them takes 
+ * one iterative lookup, O(log N) messages in a network of N peers, 
+ * followed by a request to each of the replicas.
+ * <p>
+ * Records expire if they are not stored again within the expiry time.
+ * The index is a stabilizer: each run drops expired records held by
+ * this node, and every REPUBLISHINTERVAL stores again the records put
+ * through this node, at the peers then closest to their keys; in this
+ * way records survive the departure of replicas and move to peers that
+ * join closer to their keys. It should be started with 
+ * Node.startStabilizer.
+ * <pre>
+ *   KSTO sender-pid sender-host sender-port key(hex) ttl
+ *        followed by one value per line
+ *   KFVL sender-pid sender-host sender-port key(hex)
+ *   replies: REPL with one value per line
+ * </pre>
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class DhtIndex implements StabilizerInterface {
+	
+	public static final String STORE = "KSTO";
+	public static final String FINDVALUE = "KFVL";
+	
+	public static final int REPLICAS = 3;      // peers holding each key
+	private static final int MAXVALUES = 1024; // values held per key
+	private static final long REQUESTTIMEOUT = 2000;        // milliseconds
+	private static final long REPUBLISHINTERVAL = 600000;   // milliseconds
+	private static final long EXPIRY = 3 * REPUBLISHINTERVAL;
+	
+	private Node node;
+	private KademliaRouter router;
+	private BigInteger selfKey;
+	private String selfData;   // "pid host port", to identify the sender
+	// records held by this node: key -> (value -> expiry time)
+	private ConcurrentHashMap<BigInteger,Map<String,Long>> records;
+	// records put through this node, to be republished: key -> values
+	private ConcurrentHashMap<String,Set<String>> published;
+	private long lastPublished;
+	
+	
+	/**
+	 * Creates an index stored through the given router, and registers
+	 * its message handlers with the node.
+	 * @param node the node
+	 * @param router the node's router
+	 */
+	public DhtIndex(Node node, KademliaRouter router) {
+		this.node = node;
+		this.router = router;
+		this.selfKey = KademliaRouter.keyOf(node.getId());
+		this.selfData = String.format("%s %s %d", node.getId(), node.getHost(),
+									  node.getPort());
+		this.records = new ConcurrentHashMap<BigInteger,Map<String,Long>>();
+		this.published = new ConcurrentHashMap<String,Set<String>>();
+		this.lastPublished = node.currentTimeMillis();
+		node.addHandler(STORE, new StoreHandler());
+		node.addHandler(FINDVALUE, new FindValueHandler());
+	}
+	
+	
+	/**
+	 * Adds a value to the set of values of a key, and keeps republishing
+	 * it for as long as this node runs. This method blocks until the 
+	 * value has been stored.
+	 * @param key the key
+	 * @param value the value, which may not contain line breaks
+	 * @return the number of peers, including this one, that stored the value
+	 */
+	public int put(String key, String value) {
+		Set<String> values = published.get(key);
+		if (values == null) {
+			Set<String> created = 
+				Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+			values = published.putIfAbsent(key, created);
+			if (values == null)
+				values = created;
+		}
+		values.add(value);
+		return store(key, Collections.singleton(value));
+	}
+	
+	
+	/**
+	 * Looks up the values of a key, as held by the peers closest to it.
+	 * This method blocks until the replicas have answered.
+	 * @param key the key
+	 * @return the values found, in no particular order
+	 */
+	public Set<String> get(String key) {
+		BigInteger k = KademliaRouter.keyOf(key);
+		Set<String> values = new LinkedHashSet<String>(localValues(k));
+		
+		List<PeerInfo> replicas = replicasFor(k);
+		List<CompletableFuture<List<PeerMessage>>> replies = 
+			new ArrayList<CompletableFuture<List<PeerMessage>>>();
+		for (PeerInfo pd : replicas)
+			replies.add(node.connectAndSendAsync(pd, new PeerMessage(FINDVALUE, 
+					selfData + " " + k.toString(16)), REQUESTTIMEOUT));
+		for (int i = 0; i < replicas.size(); i++) {
+			List<PeerMessage> resplist = join(replies.get(i));
+			if (resplist.isEmpty() || !resplist.get(0).getMsgType().equals("REPL")) {
+				LoggerUtil.getLogger().fine("Get: no answer from " + replicas.get(i));
+				continue;
+			}
+			for (String v : resplist.get(0).getMsgData().split("\n"))
+				if (v.length() > 0)
+					values.add(v);
+		}
+		return values;
+	}
+	
+	
+	/**
+	 * Drops expired records, and republishes the records put through 
+	 * this node if the republish interval has passed.
+	 */
+	public void stabilize() {
+		long now = node.currentTimeMillis();
+		Iterator<Map<String,Long>> it = records.values().iterator();
+		while (it.hasNext()) {
+			Map<String,Long> values = it.next();
+			synchronized (values) {
+				Iterator<Long> vit = values.values().iterator();
+				while (vit.hasNext())
+					if (vit.next() <= now)
+						vit.remove();
+				if (values.isEmpty())
+					it.remove();
+			}
+		}
+		
+		if (now - lastPublished < REPUBLISHINTERVAL)
+			return;
+		lastPublished = now;
+		for (Map.Entry<String,Set<String>> e : published.entrySet())
+			store(e.getKey(), new ArrayList<String>(e.getValue()));
+	}
+	
+	
+	/**
+	 * @return the number of keys for which this node holds values
+	 */
+	public int size() {
+		return records.size();
+	}
+	
+	
+	/*
+	 * Stores the values at the replicas of the key, and at this node if
+	 * it is itself one of the REPLICAS peers closest to the key. Returns
+	 * the number of peers that acknowledged.
+	 */
+	private int store(String key, Collection<String> values) {
+		BigInteger k = KademliaRouter.keyOf(key);
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%s %s %d", selfData, k.toString(16), EXPIRY));
+		for (String v : values)
+			sb.append('\n').append(v);
+		
+		List<PeerInfo> replicas = replicasFor(k);
+		int stored = 0;
+		if (replicas.size() < REPLICAS || selfKey.xor(k).compareTo(
+				KademliaRouter.keyOf(replicas.get(replicas.size() - 1).getId()).xor(k)) < 0) {
+			storeLocal(k, values, EXPIRY);
+			stored++;
+		}
+		
+		List<CompletableFuture<List<PeerMessage>>> replies = 
+			new ArrayList<CompletableFuture<List<PeerMessage>>>();
+		for (PeerInfo pd : replicas)
+			replies.add(node.connectAndSendAsync(pd, 
+					new PeerMessage(STORE, sb.toString()), REQUESTTIMEOUT));
+		for (int i = 0; i < replicas.size(); i++) {
+			List<PeerMessage> resplist = join(replies.get(i));
+			if (!resplist.isEmpty() && resplist.get(0).getMsgType().equals("REPL"))
+				stored++;
+			else
+				LoggerUtil.getLogger().fine("Store: no answer from " + replicas.get(i));
+		}
+		return stored;
+	}
+	
+	
+	/*
+	 * Returns the REPLICAS peers closest to the key, as found by a lookup.
+	 */
+	private List<PeerInfo> replicasFor(BigInteger k) {
+		List<PeerInfo> closest = router.lookup(k);
+		return closest.size() > REPLICAS ? closest.subList(0, REPLICAS) : closest;
+	}
+	
+	
+	private void storeLocal(BigInteger k, Collection<String> values, long ttl) {
+		Map<String,Long> held = records.get(k);
+		if (held == null) {
+			Map<String,Long> created = new ConcurrentHashMap<String,Long>();
+			held = records.putIfAbsent(k, created);
+			if (held == null)
+				held = created;
+		}
+		long expires = node.currentTimeMillis() + ttl;
+		synchronized (held) {
+			for (String v : values)
+				if (held.size() < MAXVALUES || held.containsKey(v))
+					held.put(v, expires);
+		}
+		// the map may have been dropped as empty by stabilize() meanwhile
+		if (records.get(k) != held)
+			storeLocal(k, values, ttl);
+	}
+	
+	
+	private Collection<String> localValues(BigInteger k) {
+		Map<String,Long> held = records.get(k);
+		if (held == null)
+			return Collections.emptyList();
+		long now = node.currentTimeMillis();
+		List<String> values = new ArrayList<String>();
+		for (Map.Entry<String,Long> e : held.entrySet())
+			if (e.getValue() > now)
+				values.add(e.getKey());
+		return values;
+	}
+	
+	
+	private static List<PeerMessage> join(CompletableFuture<List<PeerMessage>> f) {
+		try {
+			return f.join();
+		}
+		catch (CompletionException e) {
+			return Collections.emptyList();
+		}
+	}
+	
+	
+	/* msg syntax: KSTO sender-pid sender-host sender-port key ttl\nvalue... */
+	private class StoreHandler implements HandlerInterface {
+		public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
+			String[] lines = msg.getMsgData().split("\n");
+			String[] data = lines[0].trim().split("\\s+");
+			PeerInfo sender;
+			BigInteger k;
+			long ttl;
+			try {
+				if (data.length != 5)
+					throw new NumberFormatException();
+				sender = new PeerInfo(data[0], data[1], Integer.parseInt(data[2]));
+				k = new BigInteger(data[3], 16);
+				ttl = Math.min(Long.parseLong(data[4]), EXPIRY);
+			}
+			catch (NumberFormatException e) {
+				peerconn.sendData(new PeerMessage("ERRO", "Store: "
+						+ "incorrect arguments"));
+				return;
+			}
+			
+			List<String> values = new ArrayList<String>();
+			for (int i = 1; i < lines.length; i++)
+				if (lines[i].length() > 0)
+					values.add(lines[i]);
+			storeLocal(k, values, ttl);
+			peerconn.sendData(new PeerMessage("REPL", "Stored " + values.size()));
+			router.addContact(sender);
+		}
+	}
+	
+	
+	/* msg syntax: KFVL sender-pid sender-host sender-port key */
+	private class FindValueHandler implements HandlerInterface {
+		public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
+			String[] data = msg.getMsgData().trim().split("\\s+");
+			PeerInfo sender;
+			BigInteger k;
+			try {
+				if (data.length != 4)
+					throw new NumberFormatException();
+				sender = new PeerInfo(data[0], data[1], Integer.parseInt(data[2]));
+				k = new BigInteger(data[3], 16);
+			}
+			catch (NumberFormatException e) {
+				peerconn.sendData(new PeerMessage("ERRO", "Findvalue: "
+						+ "incorrect arguments"));
+				return;
+			}
+			
+			StringBuilder sb = new StringBuilder();
+			for (String v : localValues(k)) {
+				if (sb.length() > 0)
+					sb.append('\n');
+				sb.append(v);
+			}
+			peerconn.sendData(new PeerMessage("REPL", sb.toString()));
+			router.addContact(sender);
+		}
+	}
+}
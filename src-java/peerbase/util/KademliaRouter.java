@@ -0,0 +1,474 @@
+/*
+	File: KademliaRouter.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.util;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import peerbase.*;
+
+/**
+ * A router for a structured overlay in the style of Kademlia. Every
+ * peer has a 160-bit key, the SHA-1 hash of its peer id, and the
+ * distance between two peers is the XOR of their keys. The router
+ * keeps a table of contacts in 160 "k-buckets", bucket i holding up
+ * to K peers whose distance from this node lies in [2^i, 2^(i+1)), so
+ * that the table knows many peers nearby and a few far away, and its
+ * size grows only with the logarithm of the size of the network.
+ * <p>
+ * To route to a peer that is not in the table, the router performs an
+ * iterative lookup: it asks the ALPHA known contacts closest to the
+ * destination, in parallel, for the contacts they know closest to it,
+ * then asks the closest of those, and so on until no closer peers turn
+ * up. Each round at least halves the distance, so a lookup takes
+ * O(log N) rounds in a network of N peers. route() returns the
+ * destination itself if the lookup finds it, and otherwise the closest
+ * peer found, as the next hop towards it, but only if that peer is
+ * strictly closer to the destination than this node. The distance then
+ * shrinks on every hop, so a message for an id that is not in the
+ * overlay stops instead of bouncing between two nodes.
+ * <p>
+ * The router handles the FIND-NODE messages of other peers' lookups
+ * (registered with the node under the type KFND), and learns about the
+ * peers that send them. It is also a stabilizer: each run refreshes the
+ * buckets in which no lookup has been made for a while, by looking up
+ * a random key in the bucket's range. It should be started with 
+ * Node.startStabilizer.
+ * <pre>
+ *   KFND sender-pid sender-host sender-port target-key(hex)
+ *   replies: REPL with one "pid host port" line per contact
+ * </pre>
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class KademliaRouter implements RouterInterface, StabilizerInterface {
+	
+	public static final String FINDNODE = "KFND";
+	
+	public static final int K = 20;           // bucket size, lookup result size
+	public static final int ALPHA = 3;        // parallel requests per round
+	private static final int BITS = 160;
+	private static final long LOOKUPTIMEOUT = 2000;   // milliseconds per request
+	private static final long REFRESHINTERVAL = 3600000;  // milliseconds
+	
+	private Node node;
+	private PeerInfo self;
+	private BigInteger selfKey;
+	private KBucket[] buckets;
+	private Random random;
+	
+	
+	/**
+	 * Creates a router for the given node and registers its message
+	 * handler with the node.
+	 * @param node the node
+	 */
+	public KademliaRouter(Node node) {
+		this.node = node;
+		this.self = new PeerInfo(node.getId(), node.getHost(), node.getPort());
+		this.selfKey = keyOf(node.getId());
+		this.buckets = new KBucket[BITS];
+		for (int i = 0; i < BITS; i++) {
+			buckets[i] = new KBucket();
+			buckets[i].lastLookup = node.currentTimeMillis();
+		}
+		this.random = new Random();
+		node.addHandler(FINDNODE, new FindNodeHandler());
+	}
+	
+	
+	/**
+	 * Joins the overlay through a known peer: adds it to the table, then
+	 * looks up this node's own key, which fills the table with the peers
+	 * nearest to this node and makes this node known to them.
+	 * @param pd a peer already in the overlay
+	 */
+	public void bootstrap(PeerInfo pd) {
+		addContact(pd);
+		lookup(selfKey);
+	}
+	
+	
+	/**
+	 * @param peerid the id of the destination peer
+	 * @return the destination peer, if it is in the table or can be found
+	 * by a lookup; otherwise the closest peer known to it, if that peer
+	 * is closer to it than this node; or null
+	 */
+	public PeerInfo route(String peerid) {
+		if (peerid.equals(self.getId()))
+			return self;
+		BigInteger key = keyOf(peerid);
+		PeerInfo pd = bucketFor(key).find(peerid);
+		if (pd != null)
+			return pd;
+		
+		List<PeerInfo> closest = lookup(key);
+		for (PeerInfo c : closest)
+			if (c.getId().equals(peerid))
+				return c;
+		if (closest.isEmpty())
+			return null;
+		PeerInfo next = closest.get(0);
+		if (keyOf(next.getId()).xor(key).compareTo(selfKey.xor(key)) >= 0)
+			return null;   // no progress towards the destination
+		return next;
+	}
+	
+	
+	/**
+	 * Refreshes every bucket in which no lookup has been made within the
+	 * refresh interval.
+	 */
+	public void stabilize() {
+		long now = node.currentTimeMillis();
+		for (int i = 0; i < BITS; i++) {
+			if (buckets[i].size() == 0 && i < BITS - 1 && buckets[i + 1].size() == 0)
+				continue;   // nothing near this range is known either
+			if (now - buckets[i].lastLookup >= REFRESHINTERVAL)
+				lookup(randomKeyInBucket(i));
+		}
+	}
+	
+	
+	/**
+	 * Performs an iterative lookup for the peers closest to the given key.
+	 * @param key the key to look up
+	 * @return up to K peers, closest first
+	 */
+	public List<PeerInfo> lookup(BigInteger key) {
+		if (!key.equals(selfKey))
+			bucketFor(key).lastLookup = node.currentTimeMillis();
+		
+		List<PeerInfo> shortlist = closestContacts(key, K);
+		Set<String> seen = new HashSet<String>();
+		Set<String> queried = new HashSet<String>();
+		for (PeerInfo pd : shortlist)
+			seen.add(pd.getId());
+		
+		while (true) {
+			// the closest K peers not yet asked, ALPHA at a time
+			List<PeerInfo> round = new ArrayList<PeerInfo>();
+			for (int i = 0; i < shortlist.size() && i < K && round.size() < ALPHA; i++)
+				if (!queried.contains(shortlist.get(i).getId()))
+					round.add(shortlist.get(i));
+			if (round.isEmpty())
+				break;
+			
+			String msgdata = String.format("%s %s %d %s", self.getId(), 
+					self.getHost(), self.getPort(), key.toString(16));
+			List<CompletableFuture<List<PeerMessage>>> replies = 
+				new ArrayList<CompletableFuture<List<PeerMessage>>>();
+			for (PeerInfo pd : round) {
+				queried.add(pd.getId());
+				replies.add(node.connectAndSendAsync(pd, 
+						new PeerMessage(FINDNODE, msgdata), LOOKUPTIMEOUT));
+			}
+			
+			for (int i = 0; i < round.size(); i++) {
+				PeerInfo pd = round.get(i);
+				List<PeerMessage> resplist;
+				try {
+					resplist = replies.get(i).join();
+				}
+				catch (CompletionException e) {
+					resplist = null;
+				}
+				if (resplist == null || resplist.isEmpty() 
+						|| !resplist.get(0).getMsgType().equals("REPL")) {
+					LoggerUtil.getLogger().fine("Lookup: no answer from " + pd);
+					removeContact(pd);
+					shortlist.remove(pd);
+					continue;
+				}
+				
+				addContact(pd);
+				for (PeerInfo found : parseContacts(resplist.get(0).getMsgData())) {
+					if (found.getId().equals(self.getId()) 
+							|| !seen.add(found.getId()))
+						continue;
+					shortlist.add(found);
+				}
+			}
+			sortByDistance(shortlist, key);
+		}
+		
+		return shortlist.size() > K ? new ArrayList<PeerInfo>(shortlist.subList(0, K))
+									: shortlist;
+	}
+	
+	
+	/**
+	 * Records that a peer is alive, adding it to the table if there is
+	 * room. If its bucket is full, the least recently seen peer in the
+	 * bucket is pinged in the background, and replaced by the new peer 
+	 * only if it does not respond; long-lived peers are thus preferred.
+	 * @param pd the peer
+	 */
+	public void addContact(PeerInfo pd) {
+		if (pd.getId() == null || pd.getId().equals(self.getId()))
+			return;
+		final KBucket bucket = bucketFor(keyOf(pd.getId()));
+		final PeerInfo oldest = bucket.touch(pd);
+		if (oldest == null)
+			return;
+		
+		final PeerInfo candidate = pd;
+		try {
+			node.getExecutor().execute(new Runnable() {
+				public void run() {
+					List<PeerMessage> resplist = null;
+					try {
+						resplist = node.connectAndSendAsync(oldest, 
+								new PeerMessage(FINDNODE, String.format("%s %s %d %s",
+										self.getId(), self.getHost(), self.getPort(),
+										selfKey.toString(16))), 
+								LOOKUPTIMEOUT).join();
+					}
+					catch (CompletionException e) { }
+					if (resplist != null && !resplist.isEmpty())
+						bucket.touch(oldest);
+					else
+						bucket.replace(oldest, candidate);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			LoggerUtil.getLogger().fine("Not pinging " + oldest + ": " + e);
+		}
+	}
+	
+	
+	/**
+	 * Removes a peer that failed to respond from the table.
+	 * @param pd the peer
+	 */
+	public void removeContact(PeerInfo pd) {
+		bucketFor(keyOf(pd.getId())).remove(pd.getId());
+	}
+	
+	
+	/**
+	 * @param key a key
+	 * @param count the maximum number of peers to return
+	 * @return the peers in the table closest to the key, closest first
+	 */
+	public List<PeerInfo> closestContacts(BigInteger key, int count) {
+		List<PeerInfo> all = new ArrayList<PeerInfo>();
+		for (KBucket bucket : buckets)
+			bucket.copyTo(all);
+		sortByDistance(all, key);
+		return all.size() > count ? new ArrayList<PeerInfo>(all.subList(0, count))
+								  : all;
+	}
+	
+	
+	/**
+	 * @return the number of peers in the table
+	 */
+	public int size() {
+		int n = 0;
+		for (KBucket bucket : buckets)
+			n += bucket.size();
+		return n;
+	}
+	
+	
+	/**
+	 * @param s a peer id or other name
+	 * @return the 160-bit key of the name: its SHA-1 hash
+	 */
+	public static BigInteger keyOf(String s) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			return new BigInteger(1, md.digest(s.getBytes(StandardCharsets.UTF_8)));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 not available", e);
+		}
+	}
+	
+	
+	/*
+	 * Sorts peers by their distance from the key, closest first, hashing
+	 * each peer id only once.
+	 */
+	private static void sortByDistance(List<PeerInfo> peers, BigInteger key) {
+		List<Object[]> decorated = new ArrayList<Object[]>(peers.size());
+		for (PeerInfo pd : peers)
+			decorated.add(new Object[] { keyOf(pd.getId()).xor(key), pd });
+		Collections.sort(decorated, new Comparator<Object[]>() {
+			public int compare(Object[] a, Object[] b) {
+				return ((BigInteger)a[0]).compareTo((BigInteger)b[0]);
+			}
+		});
+		peers.clear();
+		for (Object[] d : decorated)
+			peers.add((PeerInfo)d[1]);
+	}
+	
+	
+	private KBucket bucketFor(BigInteger key) {
+		BigInteger d = key.xor(selfKey);
+		// distance 0 is this node itself; keep it out of the way in bucket 0
+		return buckets[Math.max(0, d.bitLength() - 1)];
+	}
+	
+	
+	private BigInteger randomKeyInBucket(int i) {
+		// a random distance with its highest bit at position i
+		BigInteger d = new BigInteger(i, random).setBit(i);
+		return selfKey.xor(d);
+	}
+	
+	
+	/*
+	 * Parses a reply to FIND-NODE into peer information objects.
+	 */
+	private static List<PeerInfo> parseContacts(String data) {
+		List<PeerInfo> contacts = new ArrayList<PeerInfo>();
+		for (String line : data.split("\n")) {
+			String[] f = line.trim().split("\\s+");
+			if (f.length != 3)
+				continue;
+			try {
+				contacts.add(new PeerInfo(f[0], f[1], Integer.parseInt(f[2])));
+			}
+			catch (NumberFormatException e) {
+				LoggerUtil.getLogger().fine("Bad contact: " + line);
+			}
+		}
+		return contacts;
+	}
+	
+	
+	/*
+	 * Up to K peers, least recently seen first.
+	 */
+	private static class KBucket {
+		private LinkedList<PeerInfo> contacts = new LinkedList<PeerInfo>();
+		private volatile long lastLookup;   // by the node's clock
+		
+		/* moves the peer to the tail if present, or adds it if there is
+		 * room; otherwise returns the least recently seen peer */
+		public synchronized PeerInfo touch(PeerInfo pd) {
+			Iterator<PeerInfo> it = contacts.iterator();
+			while (it.hasNext()) {
+				if (it.next().getId().equals(pd.getId())) {
+					it.remove();
+					contacts.addLast(pd);
+					return null;
+				}
+			}
+			if (contacts.size() < K) {
+				contacts.addLast(pd);
+				return null;
+			}
+			return contacts.getFirst();
+		}
+		
+		public synchronized void replace(PeerInfo old, PeerInfo pd) {
+			if (remove(old.getId()) && contacts.size() < K)
+				contacts.addLast(pd);
+		}
+		
+		public synchronized boolean remove(String pid) {
+			Iterator<PeerInfo> it = contacts.iterator();
+			while (it.hasNext()) {
+				if (it.next().getId().equals(pid)) {
+					it.remove();
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		public synchronized PeerInfo find(String pid) {
+			for (PeerInfo pd : contacts)
+				if (pd.getId().equals(pid))
+					return pd;
+			return null;
+		}
+		
+		public synchronized void copyTo(List<PeerInfo> list) {
+			list.addAll(contacts);
+		}
+		
+		public synchronized int size() {
+			return contacts.size();
+		}
+	}
+	
+	
+	/* msg syntax: KFND sender-pid sender-host sender-port target-key */
+	private class FindNodeHandler implements HandlerInterface {
+		public void handleMessage(PeerConnection peerconn, PeerMessage msg) {
+			String[] data = msg.getMsgData().trim().split("\\s+");
+			BigInteger target;
+			PeerInfo sender;
+			try {
+				if (data.length != 4)
+					throw new NumberFormatException();
+				sender = new PeerInfo(data[0], data[1], Integer.parseInt(data[2]));
+				target = new BigInteger(data[3], 16);
+			}
+			catch (NumberFormatException e) {
+				peerconn.sendData(new PeerMessage("ERRO", "Findnode: "
+						+ "incorrect arguments"));
+				return;
+			}
+			
+			StringBuilder sb = new StringBuilder();
+			for (PeerInfo pd : closestContacts(target, K)) {
+				if (pd.getId().equals(sender.getId()))
+					continue;
+				sb.append(String.format("%s %s %d\n", pd.getId(), pd.getHost(), 
+										pd.getPort()));
+			}
+			// include this node itself, which may be among the closest
+			sb.append(String.format("%s %s %d", self.getId(), self.getHost(), 
+									self.getPort()));
+			peerconn.sendData(new PeerMessage("REPL", sb.toString()));
+			addContact(sender);
+		}
+	}
+}
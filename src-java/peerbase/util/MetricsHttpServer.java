@@ -0,0 +1,144 @@
+/*
+	File: MetricsHttpServer.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import peerbase.LoggerUtil;
+import peerbase.Metrics;
+
+/**
+ * Serves the metrics of a registry over HTTP, in the Prometheus text
+ * format, so that they can be scraped by Prometheus or simply read with
+ * a browser or curl:
+ * <pre>
+ *   new MetricsHttpServer(node.getMetrics(), 9100).start();
+ *   curl http://localhost:9100/metrics
+ * </pre>
+ * The server listens on the loopback interface only, unless an address
+ * is given, and answers requests on a single daemon thread.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class MetricsHttpServer {
+	
+	public static final String PATH = "/metrics";
+	
+	private Metrics metrics;
+	private HttpServer server;
+	
+	
+	/**
+	 * @param metrics the registry to serve
+	 * @param port the port to listen on, on the loopback interface
+	 * @throws IOException if the port cannot be bound
+	 */
+	public MetricsHttpServer(Metrics metrics, int port) throws IOException {
+		this(metrics, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+	
+	
+	/**
+	 * @param metrics the registry to serve
+	 * @param addr the address to listen on
+	 * @throws IOException if the address cannot be bound
+	 */
+	public MetricsHttpServer(Metrics metrics, InetSocketAddress addr) 
+	throws IOException {
+		this.metrics = metrics;
+		this.server = HttpServer.create(addr, 0);
+		server.createContext(PATH, new MetricsHandler());
+		server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MetricsHttpServer");
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+	}
+	
+	
+	public void start() {
+		server.start();
+		LoggerUtil.getLogger().config("Serving metrics at http://" 
+				+ server.getAddress().getHostString() + ":" 
+				+ server.getAddress().getPort() + PATH);
+	}
+	
+	
+	public void stop() {
+		server.stop(0);
+	}
+	
+	
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+	
+	
+	private class MetricsHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!exchange.getRequestMethod().equals("GET") 
+						&& !exchange.getRequestMethod().equals("HEAD")) {
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				StringBuilder sb = new StringBuilder();
+				metrics.writeText(sb);
+				byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", 
+						"text/plain; version=0.0.4; charset=utf-8");
+				if (exchange.getRequestMethod().equals("HEAD")) {
+					exchange.sendResponseHeaders(200, -1);
+					return;
+				}
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+			finally {
+				exchange.close();
+			}
+		}
+	}
+}
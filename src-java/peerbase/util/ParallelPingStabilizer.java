@@ -0,0 +1,205 @@
+/*
+	File: ParallelPingStabilizer.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.util;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import peerbase.*;
+
+/**
+ * A stabilization routine that, like SimplePingStabilizer, sends "PING"
+ * messages to the peers in a node's list of peers, but probes them 
+ * concurrently rather than one after another, so that the time a sweep
+ * takes does not grow with the number of peers. At most a fixed number
+ * of probes are in progress at once, and each must complete its 
+ * exchange with the peer within a deadline. A peer whose previous probe
+ * is somehow still running is skipped. A peer is removed from the list
+ * only after it has failed a number of consecutive probes, so that a 
+ * single lost connection does not evict it. The time each successful 
+ * probe takes (see Node.measureRtt) is recorded as an estimate of the
+ * round-trip time to the peer, and with the outcome of every probe in 
+ * the node's PeerScores.
+ * <p>
+ * Probes are run as tasks of the node's I/O executor, so that they do
+ * not wait for threads behind the stabilizer that waits for them.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class ParallelPingStabilizer implements StabilizerInterface {
+	private Node peer;
+	private String msgtype;
+	private int parallelism;
+	private int timeout;
+	private int maxFailures;
+	private ConcurrentHashMap<String,PeerStats> stats;
+	
+	
+	public ParallelPingStabilizer(Node peer) {
+		this(peer, "PING", 32, 1000, 3);
+	}
+	
+	
+	/**
+	 * @param peer the node whose peers are to be checked
+	 * @param msgtype the type of the message sent to each peer
+	 * @param parallelism the maximum number of probes in progress at once
+	 * @param timeout the time (in milliseconds) a probe may take
+	 * @param maxFailures the number of consecutive failed probes after 
+	 * which a peer is removed
+	 */
+	public ParallelPingStabilizer(Node peer, String msgtype, int parallelism,
+								  int timeout, int maxFailures) {
+		this.peer = peer;
+		this.msgtype = msgtype;
+		this.parallelism = parallelism;
+		this.timeout = timeout;
+		this.maxFailures = maxFailures;
+		this.stats = new ConcurrentHashMap<String,PeerStats>();
+	}
+	
+	
+	public void stabilize() {
+		Set<String> pids = peer.getPeerKeys();
+		stats.keySet().retainAll(pids);
+		
+		final Semaphore slots = new Semaphore(parallelism);
+		final CountDownLatch finished = new CountDownLatch(pids.size());
+		for (final String pid : pids) {
+			final PeerInfo pd = peer.getPeer(pid);
+			final PeerStats ps = pd == null ? null : statsFor(pid);
+			if (ps == null || !ps.probing.compareAndSet(false, true)) {
+				finished.countDown();
+				continue;
+			}
+			try {
+				slots.acquire();
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			Runnable probe = new Runnable() {
+				public void run() {
+					try {
+						probe(pid, pd, ps);
+					}
+					finally {
+						ps.probing.set(false);
+						slots.release();
+						finished.countDown();
+					}
+				}
+			};
+			try {
+				peer.getIoExecutor().execute(probe);
+			}
+			catch (RejectedExecutionException e) {
+				probe.run();
+			}
+		}
+		
+		try {
+			// every probe gives up after its deadline, so this is a safeguard
+			finished.await(2L * timeout * (pids.size() / parallelism + 1), 
+						   TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) { }
+	}
+	
+	
+	/**
+	 * @param pid the key of a peer
+	 * @return the smoothed round-trip time to the peer in milliseconds, 
+	 * or -1 if it has not been measured
+	 */
+	public double getRtt(String pid) {
+		PeerStats ps = stats.get(pid);
+		return ps == null ? -1 : ps.rtt;
+	}
+	
+	
+	/**
+	 * @param pid the key of a peer
+	 * @return the number of consecutive probes the peer has failed
+	 */
+	public int getFailures(String pid) {
+		PeerStats ps = stats.get(pid);
+		return ps == null ? 0 : ps.failures;
+	}
+	
+	
+	private PeerStats statsFor(String pid) {
+		PeerStats ps = stats.get(pid);
+		if (ps == null) {
+			stats.putIfAbsent(pid, new PeerStats());
+			ps = stats.get(pid);
+		}
+		return ps;
+	}
+	
+	
+	private void probe(String pid, PeerInfo pd, PeerStats ps) {
+		try {
+			double rtt = peer.measureRtt(pd, msgtype, timeout);
+			ps.success(rtt);
+			peer.getPeerScores().recordRtt(pid, rtt);
+		}
+		catch (IOException e) {
+			ps.failures++;
+			peer.getPeerScores().recordFailure(pid);
+			LoggerUtil.getLogger().fine("Probe of " + pid + " failed (" 
+					+ ps.failures + "): " + e);
+			if (ps.failures >= maxFailures) {
+				peer.removePeer(pid);
+				stats.remove(pid);
+			}
+		}
+	}
+	
+	
+	/*
+	 * What is known about one peer. Only one probe of a peer runs at a
+	 * time, but the fields may be read by other threads.
+	 */
+	private static class PeerStats {
+		private AtomicBoolean probing = new AtomicBoolean(false);
+		private volatile int failures = 0;
+		private volatile double rtt = -1;
+		
+		public void success(double sample) {
+			failures = 0;
+			// exponentially weighted moving average, as for TCP's SRTT
+			rtt = rtt < 0 ? sample : 0.875 * rtt + 0.125 * sample;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+	File: SeenCache.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded set of recently seen ids, such as the ids of flooded
+ * queries, used to recognize and drop duplicates. An id is forgotten
+ * once it has been in the set longer than the expiry time, or when the
+ * set is full and room is needed for a newer id. Time is told by the
+ * given clock, such as that of the node using the cache (see 
+ * Node.setClock), or by default by the system clock.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class SeenCache {
+	
+	private int capacity;
+	private long expiry;
+	private LongSupplier clock;   // milliseconds
+	private LinkedHashMap<String,Long> seen;   // id -> time first seen
+	
+	
+	/**
+	 * @param capacity the maximum number of ids remembered
+	 * @param expiry the time (in milliseconds) an id is remembered
+	 */
+	public SeenCache(int capacity, long expiry) {
+		this(capacity, expiry, new LongSupplier() {
+			public long getAsLong() { return System.currentTimeMillis(); }
+		});
+	}
+	
+	
+	/**
+	 * @param capacity the maximum number of ids remembered
+	 * @param expiry the time (in milliseconds) an id is remembered
+	 * @param clock a source of the time in milliseconds
+	 */
+	public SeenCache(int capacity, long expiry, LongSupplier clock) {
+		this.capacity = capacity;
+		this.expiry = expiry;
+		this.clock = clock;
+		this.seen = new LinkedHashMap<String,Long>();
+	}
+	
+	
+	/**
+	 * Records an id as seen.
+	 * @param id the id
+	 * @return true if the id had not been seen (or had been forgotten), 
+	 * false if it is a duplicate
+	 */
+	public synchronized boolean add(String id) {
+		long now = clock.getAsLong();
+		
+		// ids are kept in the order they were seen, so the expired ones
+		// are at the front
+		Iterator<Map.Entry<String,Long>> it = seen.entrySet().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().getValue() < expiry && seen.size() < capacity)
+				break;
+			it.remove();
+		}
+		
+		if (seen.containsKey(id))
+			return false;
+		seen.put(id, now);
+		return true;
+	}
+	
+	
+	/**
+	 * @return the number of ids currently remembered
+	 */
+	public synchronized int size() {
+		return seen.size();
+	}
+}
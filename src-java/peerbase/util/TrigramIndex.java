@@ -0,0 +1,226 @@
+/*
+	File: TrigramIndex.java
+	Copyright 2026 by the PeerBase contributors
+
+	Permission to use, copy, modify, and distribute this software and its
+	documentation for any purpose and without fee is hereby granted, provided
+	that the above copyright notice appear in all copies and that both the
+	copyright notice and this permission notice and warranty disclaimer appear
+	in supporting documentation, and that the names of the authors or their
+	employers not be used in advertising or publicity pertaining to distri-
+	bution of the software without specific, written prior permission.
+
+	The authors and their employers disclaim all warranties with regard to
+	this software, including all implied warranties of merchantability and
+	fitness. In no event shall the authors or their employers be liable for
+	any special, indirect or consequential damages or any damages whatsoever
+	resulting from loss of use, data or profits, whether in an action of
+	contract, negligence or other tortious action, arising out of or in
+	connection with the use or performance of this software, even if
+	advised of the possibility of such damage.
+
+	Date		Author				Changes
+	Oct 18 2026	PeerBase contributors	Created
+ */
+
+
+package peerbase.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An index of names supporting case-insensitive substring search without
+ * scanning every name. Each name is converted to upper case once, when
+ * it is added, and recorded under every trigram (sequence of three
+ * characters) it contains. A search for a key of three or more 
+ * characters looks up the lists of names containing each trigram of the
+ * key, intersects them -- starting with the shortest -- and checks only
+ * the names that remain. Keys shorter than three characters are matched
+ * against the stored upper-case names directly.
+ * <p>
+ * Names are never removed. Searches may run concurrently with each
+ * other; additions are exclusive.
+ * 
+ * @author PeerBase contributors
+ *
+ */
+public class TrigramIndex {
+	
+	private ArrayList<String> names;          // by id, as added
+	private ArrayList<String> normalized;     // by id, upper case
+	private HashMap<String,Integer> ids;
+	private HashMap<Long,Postings> trigrams;
+	private ReadWriteLock lock;
+	
+	
+	public TrigramIndex() {
+		names = new ArrayList<String>();
+		normalized = new ArrayList<String>();
+		ids = new HashMap<String,Integer>();
+		trigrams = new HashMap<Long,Postings>();
+		lock = new ReentrantReadWriteLock();
+	}
+	
+	
+	/**
+	 * Adds a name to the index.
+	 * @param name the name
+	 * @return false if the name was already in the index
+	 */
+	public boolean add(String name) {
+		lock.writeLock().lock();
+		try {
+			if (ids.containsKey(name))
+				return false;
+			int id = names.size();
+			String norm = name.toUpperCase();
+			names.add(name);
+			normalized.add(norm);
+			ids.put(name, id);
+			
+			for (int i = 0; i + 3 <= norm.length(); i++) {
+				Long tri = trigram(norm, i);
+				Postings list = trigrams.get(tri);
+				if (list == null) {
+					list = new Postings();
+					trigrams.put(tri, list);
+				}
+				list.add(id);   // ids only increase, so lists stay sorted
+			}
+			return true;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * @param name a name
+	 * @return true if the name is in the index
+	 */
+	public boolean contains(String name) {
+		lock.readLock().lock();
+		try {
+			return ids.containsKey(name);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * @return the number of names in the index
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return names.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Finds the names containing the given key, ignoring case, in the 
+	 * order they were added.
+	 * @param key the substring to search for
+	 * @param limit the maximum number of names to return
+	 * @return the matching names
+	 */
+	public List<String> search(String key, int limit) {
+		String norm = key.toUpperCase();
+		List<String> found = new ArrayList<String>();
+		lock.readLock().lock();
+		try {
+			if (norm.length() < 3) {
+				for (int id = 0; id < normalized.size() && found.size() < limit; id++)
+					if (normalized.get(id).indexOf(norm) >= 0)
+						found.add(names.get(id));
+				return found;
+			}
+			
+			Postings[] lists = new Postings[norm.length() - 2];
+			for (int i = 0; i < lists.length; i++) {
+				lists[i] = trigrams.get(trigram(norm, i));
+				if (lists[i] == null)
+					return found;
+			}
+			Arrays.sort(lists);
+			
+			// walk the shortest list, skipping ahead in the others
+			int[] cursors = new int[lists.length];
+			Postings first = lists[0];
+			candidates:
+			for (int k = 0; k < first.size && found.size() < limit; k++) {
+				int id = first.ids[k];
+				for (int j = 1; j < lists.length; j++) {
+					cursors[j] = lists[j].seek(id, cursors[j]);
+					if (cursors[j] == lists[j].size)
+						break candidates;
+					if (lists[j].ids[cursors[j]] != id)
+						continue candidates;
+				}
+				// the trigrams match; check that they are in sequence
+				if (normalized.get(id).indexOf(norm) >= 0)
+					found.add(names.get(id));
+			}
+			return found;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	/*
+	 * Packs the three characters at position i of s into one key.
+	 */
+	private static Long trigram(String s, int i) {
+		return ((long)s.charAt(i) << 32) | ((long)s.charAt(i + 1) << 16) 
+				| s.charAt(i + 2);
+	}
+	
+	
+	/*
+	 * A sorted, growable list of name ids.
+	 */
+	private static class Postings implements Comparable<Postings> {
+		private int[] ids = new int[4];
+		private int size = 0;
+		
+		public void add(int id) {
+			if (size > 0 && ids[size - 1] == id)
+				return;   // trigram occurs more than once in the name
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+		
+		/* returns the index of the first id >= the given one, searching
+		 * from the given index */
+		public int seek(int id, int from) {
+			int lo = from, hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (ids[mid] < id)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+		
+		public int compareTo(Postings other) {
+			return size - other.size;
+		}
+	}
+}